@@ -0,0 +1,133 @@
+package nachos.ag;
+
+import java.lang.management.ManagementFactory;
+import java.security.PrivilegedAction;
+
+import nachos.machine.Lib;
+import nachos.security.Privilege;
+
+/**
+ * Measures how many bytes the simulated processor allocates per user
+ * instruction in steady state. Run it in place of the usual grader, e.g.
+ *
+ * <pre>
+ * nachos -- nachos.ag.AllocationGrader -x matmult.coff -# interval=50
+ * </pre>
+ *
+ * <p>
+ * A sampling interrupt fires every <tt>interval</tt> ticks and records the
+ * bytes allocated so far by the current Java thread. The window between two
+ * samples is only counted if nothing but user instructions ran in it: both
+ * samples were taken between user instructions, no exception was raised, no
+ * context switch happened, and no other interrupt was due before the closing
+ * sample. The totals are printed when Nachos exits.
+ */
+public class AllocationGrader extends AutoGrader {
+	@Override
+	void init() {
+		super.init();
+
+		if (hasArgument("interval"))
+			interval = getIntegerArgument("interval");
+		Lib.assertTrue(interval > 0, "invalid interval argument");
+
+		threadBean = (com.sun.management.ThreadMXBean) privilege
+				.doPrivileged(new PrivilegedAction<Object>() {
+					public Object run() {
+						return ManagementFactory.getThreadMXBean();
+					}
+				});
+		Lib.assertTrue(threadBean.isThreadAllocatedMemorySupported(),
+				"thread allocation accounting is not supported by this JVM");
+
+		// the cost of taking a sample is charged to every window
+		long id = Thread.currentThread().getId();
+		long first = threadBean.getThreadAllocatedBytes(id);
+		sampleCost = threadBean.getThreadAllocatedBytes(id) - first;
+
+		sampleDevice = privilege.interrupt.registerDevice("allocation sample");
+		sample = new Runnable() {
+			public void run() {
+				sample();
+			}
+		};
+
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				report();
+			}
+		});
+
+		scheduleSample();
+	}
+
+	@Override
+	public boolean exceptionHandler(Privilege privilege) {
+		exceptions++;
+		return super.exceptionHandler(privilege);
+	}
+
+	private void sample() {
+		long thread = Thread.currentThread().getId();
+		long bytes = threadBean.getThreadAllocatedBytes(thread);
+
+		// if no kernel ticks passed since the last sample, this one was taken
+		// on the tick after a user instruction, not in the middle of the kernel
+		boolean userTick = privilege.stats.kernelTicks == lastKernelTicks;
+
+		if (windowOpen && userTick && thread == windowThread
+				&& exceptions == windowExceptions) {
+			long windowAllocated = bytes - windowBytes - sampleCost;
+
+			windows++;
+			instructions += privilege.stats.userTicks - windowUserTicks;
+			allocated += windowAllocated;
+
+			// first executions of an instruction word decode it, which
+			// allocates; in steady state these windows become rare
+			if (windowAllocated != 0)
+				allocatingWindows++;
+		}
+
+		scheduleSample();
+
+		// only open a window if this sample will be the next interrupt
+		windowOpen = userTick
+				&& privilege.interrupt.nextPendingTime() == nextSampleTime;
+		lastKernelTicks = privilege.stats.kernelTicks;
+		windowThread = thread;
+		windowExceptions = exceptions;
+		windowUserTicks = privilege.stats.userTicks;
+		windowBytes = threadBean.getThreadAllocatedBytes(thread);
+	}
+
+	private void scheduleSample() {
+		nextSampleTime = privilege.stats.totalTicks + interval;
+		privilege.interrupt.schedule(interval, sampleDevice, sample);
+	}
+
+	private void report() {
+		System.out.println("Allocation: windows " + windows + " ("
+				+ allocatingWindows + " allocating), user instructions "
+				+ instructions + ", bytes " + allocated);
+
+		if (instructions > 0)
+			System.out.println("Allocation: bytes per instruction "
+					+ ((double) allocated / instructions));
+	}
+
+	private int interval = 50;
+	private com.sun.management.ThreadMXBean threadBean;
+	private long sampleCost;
+	private int sampleDevice;
+	private Runnable sample;
+	private long nextSampleTime;
+	private long lastKernelTicks = -1;
+
+	private boolean windowOpen = false;
+	private long windowThread, windowExceptions, windowUserTicks, windowBytes;
+
+	private long exceptions = 0;
+	private long windows = 0, allocatingWindows = 0;
+	private long instructions = 0, allocated = 0;
+}
@@ -175,6 +175,7 @@ public class BoatGrader extends BasicTestGrader {
 
 	@Override
 	public void setIdleThread(KThread thread) {
+		super.setIdleThread(thread);
 		idleThread = thread;
 	}
 
@@ -0,0 +1,131 @@
+package nachos.ag;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.Semaphore;
+
+/**
+ * Measures the host time taken by a Nachos context switch. Run it with a
+ * threads-only kernel, once for each TCB backend, e.g.
+ *
+ * <pre>
+ * nachos -[] conf/proj1.conf -- nachos.ag.ContextSwitchGrader -# threads=2,switches=200000
+ * </pre>
+ *
+ * <p>
+ * <tt>threads</tt> threads are forked and switch between each other until
+ * about <tt>switches</tt> switches have been made in total. With
+ * <tt>pattern=yield</tt> (the default) they call <tt>KThread.yield()</tt> in
+ * a loop, as in <tt>KThread.selfTest()</tt>; with a round-robin scheduler
+ * every yield switches to a different TCB. With <tt>pattern=semaphore</tt>
+ * they pass a token around a ring of semaphores, as the two threads in
+ * <tt>Semaphore.selfTest()</tt> do. Only switches between different TCBs
+ * are counted. Forking the threads is timed separately, so
+ * that large <tt>threads</tt> values also show what it costs to create a TCB.
+ */
+public class ContextSwitchGrader extends AutoGrader {
+	@Override
+	void init() {
+		super.init();
+
+		if (hasArgument("threads"))
+			threads = getIntegerArgument("threads");
+		if (hasArgument("switches"))
+			switches = getIntegerArgument("switches");
+		Lib.assertTrue(threads > 0, "invalid threads argument");
+		Lib.assertTrue(switches > 0, "invalid switches argument");
+
+		if (hasArgument("pattern"))
+			pattern = getStringArgument("pattern");
+		Lib.assertTrue(pattern.equals("yield") || pattern.equals("semaphore"),
+				"invalid pattern argument");
+
+		remaining = switches;
+	}
+
+	@Override
+	public void runningThread(KThread thread) {
+		if (thread != lastThread)
+			contextSwitches++;
+		lastThread = thread;
+
+		super.runningThread(thread);
+	}
+
+	@Override
+	void run() {
+		String tcbBackend = Config.getString("TCB.backend", "platform");
+		String handoff = Config.getString("TCB.handoff",
+				tcbBackend.equals("virtual") ? "park" : "monitor");
+		String backend = tcbBackend + ", " + handoff + ", " + pattern;
+
+		long forkStart = System.nanoTime();
+
+		// keep the timer from switching to the new threads before all exist
+		boolean intStatus = Machine.interrupt().disable();
+
+		final Semaphore[] ring = new Semaphore[threads];
+		for (int i = 0; i < threads; i++)
+			ring[i] = new Semaphore(0);
+
+		KThread[] forked = new KThread[threads];
+		for (int i = 0; i < threads; i++) {
+			final Semaphore ping = ring[i];
+			final Semaphore pong = ring[(i + 1) % threads];
+
+			Runnable target;
+			if (pattern.equals("yield")) {
+				target = new Runnable() {
+					public void run() {
+						while (remaining > 0) {
+							remaining--;
+							KThread.yield();
+						}
+					}
+				};
+			} else {
+				target = new Runnable() {
+					public void run() {
+						for (int j = switches / threads; j > 0; j--) {
+							ping.P();
+							pong.V();
+						}
+					}
+				};
+			}
+
+			forked[i] = new KThread(target).setName("switcher " + i);
+			forked[i].fork();
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		long switchStart = System.nanoTime();
+		long switchesBefore = contextSwitches;
+
+		ring[0].V();
+
+		for (int i = 0; i < threads; i++)
+			forked[i].join();
+
+		long switchEnd = System.nanoTime();
+		long total = contextSwitches - switchesBefore;
+
+		System.out.println("Context switch (" + backend + "): threads "
+				+ threads + ", switches " + total + ", "
+				+ ((switchEnd - switchStart) / total) + " ns per switch");
+		System.out.println("Context switch (" + backend + "): "
+				+ ((switchStart - forkStart) / threads) + " ns per fork");
+
+		kernel.terminate();
+	}
+
+	private int threads = 2;
+	private int switches = 100000;
+	private String pattern = "yield";
+	private int remaining;
+	private long contextSwitches = 0;
+	private KThread lastThread = null;
+}
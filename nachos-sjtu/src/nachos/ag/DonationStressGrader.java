@@ -0,0 +1,227 @@
+package nachos.ag;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
+import nachos.threads.PriorityScheduler;
+import nachos.threads.Semaphore;
+import nachos.threads.ThreadQueue;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * Stresses priority donation with long lock chains and many waiters per lock,
+ * and measures how long the scheduler takes to work through them. Run it with
+ * a priority scheduler, e.g.
+ *
+ * <pre>
+ * nachos -[] conf/proj1.conf -- nachos.ag.DonationStressGrader -# depth=200,waiters=20,rounds=20
+ * </pre>
+ *
+ * <p>
+ * A chain of <tt>depth</tt> threads of low priority is built, where every
+ * thread holds one lock and waits for the next. The last thread holds its
+ * lock and blocks on a gate. Then <tt>waiters</tt> threads of random priority
+ * block on each lock. Once everything is blocked, the last thread's effective
+ * priority must be the highest priority of any thread. The gate is then
+ * opened and the chain unwinds.
+ *
+ * <p>
+ * This is done once with running threads, capped at a chain of 16 locks with
+ * 12 waiters each so it fits in the platform TCB limit, to check donation.
+ * It is then repeated <tt>rounds</tt> times at full size directly on the
+ * scheduler's queues, with threads that are never forked, so that the
+ * reported time per queue operation is not swamped by context switches. In
+ * these rounds the waiters stay below the maximum priority, and before the
+ * chain unwinds, one waiter at its start is raised to the maximum and
+ * lowered again <tt>churns</tt> times. Each change has to be donated along
+ * the whole chain.
+ */
+public class DonationStressGrader extends BasicTestGrader {
+	@Override
+	void init() {
+		super.init();
+
+		if (hasArgument("depth"))
+			depth = getIntegerArgument("depth");
+		if (hasArgument("waiters"))
+			waiters = getIntegerArgument("waiters");
+		if (hasArgument("rounds"))
+			rounds = getIntegerArgument("rounds");
+		if (hasArgument("churns"))
+			churns = getIntegerArgument("churns");
+		Lib.assertTrue(depth > 0, "invalid depth argument");
+		Lib.assertTrue(waiters >= 0, "invalid waiters argument");
+		Lib.assertTrue(rounds > 0, "invalid rounds argument");
+		Lib.assertTrue(churns >= 0, "invalid churns argument");
+	}
+
+	@Override
+	public void run() {
+		assertTrue(ThreadedKernel.scheduler instanceof PriorityScheduler,
+				"this test requires priority scheduler");
+
+		threadRound(Math.min(depth, 16), Math.min(waiters, 12));
+
+		for (int i = 0; i < rounds; i++)
+			queueRound();
+
+		System.out.println("Donation stress: depth " + depth + ", waiters "
+				+ waiters + ", " + operations + " queue operations, "
+				+ (queueTime / operations) + " ns per operation");
+
+		done();
+	}
+
+	private void queueRound() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		// create every thread and queue up front, only queue operations are timed
+		ThreadQueue[] queues = new ThreadQueue[depth];
+		KThread[] holders = new KThread[depth];
+		KThread[] waiting = new KThread[depth * waiters];
+		int expected = chainPriority;
+
+		for (int i = 0; i < depth; i++) {
+			queues[i] = ThreadedKernel.scheduler.newThreadQueue(true);
+			holders[i] = new KThread();
+			ThreadedKernel.scheduler.setPriority(holders[i], chainPriority);
+		}
+
+		for (int i = 0; i < waiting.length; i++) {
+			waiting[i] = new KThread();
+			int priority = chainPriority + 1
+					+ Lib.random(PriorityScheduler.priorityMaximum
+							- chainPriority - 1);
+			ThreadedKernel.scheduler.setPriority(waiting[i], priority);
+			expected = Math.max(expected, priority);
+		}
+
+		long start = System.nanoTime();
+
+		// build the chain from the end, so each lock is held when it is asked for
+		for (int i = depth - 1; i >= 0; i--) {
+			queues[i].acquire(holders[i]);
+			if (i < depth - 1)
+				queues[i + 1].waitForAccess(holders[i]);
+			operations += 2;
+		}
+
+		for (int i = 0; i < waiting.length; i++) {
+			queues[i / waiters].waitForAccess(waiting[i]);
+			operations++;
+		}
+
+		int donated = ThreadedKernel.scheduler
+				.getEffectivePriority(holders[depth - 1]);
+
+		int churned = PriorityScheduler.priorityMaximum;
+		for (int i = 0; i < churns && waiters > 0; i++) {
+			int priority = ThreadedKernel.scheduler.getPriority(waiting[0]);
+			ThreadedKernel.scheduler.setPriority(waiting[0],
+					PriorityScheduler.priorityMaximum);
+			churned = Math.min(churned, ThreadedKernel.scheduler
+					.getEffectivePriority(holders[depth - 1]));
+			ThreadedKernel.scheduler.setPriority(waiting[0], priority);
+			operations += 2;
+		}
+
+		// unwind from the start of the chain, so every release is donated up
+		for (int i = 0; i < depth; i++) {
+			while (queues[i].nextThread() != null)
+				operations++;
+			operations++;
+		}
+
+		queueTime += System.nanoTime() - start;
+
+		Machine.interrupt().restore(intStatus);
+
+		assertTrue(donated == expected, "chain end has effective priority "
+				+ donated + ", expected " + expected);
+		assertTrue(churns == 0 || waiters == 0
+				|| churned == PriorityScheduler.priorityMaximum,
+				"raised priority was not donated along the chain");
+	}
+
+	private void threadRound(final int depth, int waiters) {
+		final Lock[] locks = new Lock[depth];
+		for (int i = 0; i < depth; i++)
+			locks[i] = new Lock();
+
+		final Semaphore arrived = new Semaphore(0);
+		final Semaphore gate = new Semaphore(0);
+
+		// the main thread only runs again once every other thread is blocked
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(chainPriority);
+		Machine.interrupt().restore(intStatus);
+
+		ThreadHandler[] threads = new ThreadHandler[depth * (waiters + 1)];
+		int numThreads = 0;
+		int expected = chainPriority + 1;
+
+		for (int i = depth - 1; i >= 0; i--) {
+			final int n = i;
+			threads[numThreads++] = forkNewThread(new Runnable() {
+				public void run() {
+					locks[n].acquire();
+					arrived.V();
+
+					if (n == depth - 1) {
+						gate.P();
+					} else {
+						locks[n + 1].acquire();
+						locks[n + 1].release();
+					}
+
+					locks[n].release();
+				}
+			}, chainPriority + 1);
+
+			// make sure this link holds its lock before the next one asks
+			arrived.P();
+		}
+
+		for (int i = 0; i < depth; i++) {
+			for (int j = 0; j < waiters; j++) {
+				final int n = i;
+				int priority = chainPriority + 1
+						+ Lib.random(PriorityScheduler.priorityMaximum
+								- chainPriority);
+				expected = Math.max(expected, priority);
+
+				threads[numThreads++] = forkNewThread(new Runnable() {
+					public void run() {
+						locks[n].acquire();
+						locks[n].release();
+					}
+				}, priority);
+			}
+		}
+
+		KThread.yield();
+
+		intStatus = Machine.interrupt().disable();
+		int donated = ThreadedKernel.scheduler
+				.getEffectivePriority(threads[0].thread);
+		ThreadedKernel.scheduler.setPriority(PriorityScheduler.priorityMaximum);
+		Machine.interrupt().restore(intStatus);
+
+		assertTrue(donated == expected, "chain end has effective priority "
+				+ donated + ", expected " + expected);
+
+		gate.V();
+		for (int i = 0; i < numThreads; i++)
+			threads[i].thread.join();
+	}
+
+	private static final int chainPriority = PriorityScheduler.priorityMinimum;
+
+	private int depth = 200;
+	private int waiters = 20;
+	private int rounds = 20;
+	private int churns = 1000;
+	private long operations = 0;
+	private long queueTime = 0;
+}
@@ -0,0 +1,131 @@
+package nachos.ag;
+
+import nachos.machine.Lib;
+import nachos.threads.Channel;
+import nachos.threads.Communicator;
+import nachos.threads.KThread;
+
+/**
+ * Compares moving words from a producer thread to a consumer thread through a
+ * <tt>Communicator</tt> and through a <tt>Channel</tt>. Run it with a
+ * threads-only kernel, e.g.
+ *
+ * <pre>
+ * nachos -[] conf/proj1.conf -- nachos.ag.PipelineGrader -# words=20000,batch=64,capacity=256
+ * </pre>
+ *
+ * <p>
+ * The producer sends <tt>words</tt> consecutive integers and the consumer
+ * checks that they arrive in order. Through the communicator this is done one
+ * word per rendezvous. Through a channel of <tt>capacity</tt> words, the
+ * producer sends arrays of <tt>batch</tt> words and the consumer receives up
+ * to <tt>batch</tt> words at a time. For each, the number of context
+ * switches, simulated ticks and host time per word are reported.
+ */
+public class PipelineGrader extends BasicTestGrader {
+	@Override
+	void init() {
+		super.init();
+
+		if (hasArgument("words"))
+			words = getIntegerArgument("words");
+		if (hasArgument("batch"))
+			batch = getIntegerArgument("batch");
+		if (hasArgument("capacity"))
+			capacity = getIntegerArgument("capacity");
+		Lib.assertTrue(words > 0, "invalid words argument");
+		Lib.assertTrue(batch > 0, "invalid batch argument");
+		Lib.assertTrue(capacity > 0, "invalid capacity argument");
+	}
+
+	@Override
+	public void runningThread(KThread thread) {
+		if (thread != lastThread)
+			contextSwitches++;
+		lastThread = thread;
+
+		super.runningThread(thread);
+	}
+
+	@Override
+	public void run() {
+		final Communicator communicator = new Communicator();
+		measure("communicator", new Runnable() {
+			public void run() {
+				for (int i = 0; i < words; i++)
+					communicator.speak(i);
+			}
+		}, new Runnable() {
+			public void run() {
+				for (int i = 0; i < words; i++)
+					check(communicator.listen());
+			}
+		});
+
+		final Channel channel = new Channel(capacity);
+		measure("channel", new Runnable() {
+			public void run() {
+				int[] block = new int[batch];
+				for (int i = 0; i < words; i += batch) {
+					int n = Math.min(batch, words - i);
+					if (n < batch)
+						block = new int[n];
+					for (int j = 0; j < n; j++)
+						block[j] = i + j;
+					channel.send(block);
+				}
+			}
+		}, new Runnable() {
+			public void run() {
+				int[] block = new int[batch];
+				for (int i = 0; i < words;) {
+					int n = channel.receive(block, Math.min(batch, words - i));
+					for (int j = 0; j < n; j++)
+						check(block[j]);
+					i += n;
+				}
+			}
+		});
+
+		done();
+	}
+
+	private void measure(String name, Runnable producer, Runnable consumer) {
+		expected = 0;
+
+		long switchesBefore = contextSwitches;
+		long ticksBefore = privilege.stats.totalTicks;
+		long start = System.nanoTime();
+
+		ThreadHandler producerThread = forkNewThread(producer);
+		ThreadHandler consumerThread = forkNewThread(consumer);
+		producerThread.thread.join();
+		consumerThread.thread.join();
+
+		long time = System.nanoTime() - start;
+		long ticks = privilege.stats.totalTicks - ticksBefore;
+		long switches = contextSwitches - switchesBefore;
+
+		assertTrue(expected == words, "consumer received " + expected
+				+ " words, expected " + words);
+
+		System.out.println("Pipeline (" + name + "): words " + words + ", "
+				+ String.format("%.3f", (double) switches / words)
+				+ " switches per word, "
+				+ String.format("%.1f", (double) ticks / words)
+				+ " ticks per word, " + (time / words) + " ns per word");
+	}
+
+	private void check(int word) {
+		assertTrue(word == expected, "received " + word + ", expected "
+				+ expected);
+		expected++;
+	}
+
+	private int words = 20000;
+	private int batch = 64;
+	private int capacity = 256;
+	private int expected;
+	private long contextSwitches = 0;
+	private KThread lastThread = null;
+}
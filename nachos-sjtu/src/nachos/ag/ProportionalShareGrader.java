@@ -0,0 +1,99 @@
+package nachos.ag;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.LotteryScheduler;
+import nachos.threads.Scheduler;
+import nachos.threads.StrideScheduler;
+import nachos.threads.ThreadQueue;
+
+/**
+ * Compares how closely <tt>LotteryScheduler</tt> and <tt>StrideScheduler</tt>
+ * share a queue in proportion to tickets, and how long each takes to make a
+ * decision. Run it with a threads-only kernel, e.g.
+ *
+ * <pre>
+ * nachos -[] conf/proj1.conf -- nachos.ag.ProportionalShareGrader -# threads=10,decisions=100000
+ * </pre>
+ *
+ * <p>
+ * For each scheduler, <tt>threads</tt> threads that are never forked are
+ * given 1, 2, ... tickets and put on a queue. A decision takes the next
+ * thread off the queue and puts it back, as a ready queue does with a thread
+ * that used up its quantum. After <tt>decisions</tt> decisions, each thread
+ * should have been chosen in proportion to its tickets. The error reported is
+ * the largest difference, in decisions, between how often a thread was
+ * chosen and its fair share, both as a count and relative to that share.
+ * With a lottery the error grows with the square root of the number of
+ * decisions; with strides it stays within a few decisions.
+ */
+public class ProportionalShareGrader extends AutoGrader {
+	@Override
+	void init() {
+		super.init();
+
+		if (hasArgument("threads"))
+			threads = getIntegerArgument("threads");
+		if (hasArgument("decisions"))
+			decisions = getIntegerArgument("decisions");
+		Lib.assertTrue(threads > 0, "invalid threads argument");
+		Lib.assertTrue(decisions > 0, "invalid decisions argument");
+	}
+
+	@Override
+	void run() {
+		measure("lottery", new LotteryScheduler());
+		measure("stride", new StrideScheduler());
+
+		kernel.terminate();
+	}
+
+	private void measure(String name, Scheduler scheduler) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		KThread[] waiting = new KThread[threads];
+		long totalTickets = 0;
+
+		for (int i = 0; i < threads; i++) {
+			waiting[i] = new KThread().setName("share " + i);
+			scheduler.setPriority(waiting[i], i + 1);
+			totalTickets += i + 1;
+			queue.waitForAccess(waiting[i]);
+		}
+
+		int[] chosen = new int[threads];
+
+		long start = System.nanoTime();
+		for (int i = 0; i < decisions; i++) {
+			KThread thread = queue.nextThread();
+			chosen[scheduler.getPriority(thread) - 1]++;
+			queue.waitForAccess(thread);
+		}
+		long time = System.nanoTime() - start;
+
+		while (queue.nextThread() != null)
+			;
+
+		Machine.interrupt().restore(intStatus);
+
+		double maxError = 0, maxRelative = 0;
+		for (int i = 0; i < threads; i++) {
+			double share = (double) decisions * (i + 1) / totalTickets;
+			double error = Math.abs(chosen[i] - share);
+			maxError = Math.max(maxError, error);
+			maxRelative = Math.max(maxRelative, error / share);
+		}
+
+		System.out.println("Proportional share (" + name + "): threads "
+				+ threads + ", decisions " + decisions + ", "
+				+ (time / decisions) + " ns per decision");
+		System.out.println("Proportional share (" + name + "): max error "
+				+ String.format("%.1f", maxError) + " decisions, "
+				+ String.format("%.2f%%", maxRelative * 100) + " of share");
+	}
+
+	private int threads = 10;
+	private int decisions = 100000;
+}
@@ -0,0 +1,155 @@
+package nachos.ag;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * Measures how long I/O-bound threads wait to run while CPU-bound threads
+ * compete with them, and how much work the CPU-bound threads get done. Run it
+ * with a threads-only kernel, once for each scheduler, e.g.
+ *
+ * <pre>
+ * nachos -[] conf/proj1.conf -- nachos.ag.ResponseTimeGrader -# batch=3,interactive=2,bursts=40
+ * </pre>
+ *
+ * <p>
+ * <tt>batch</tt> threads spin, enabling and disabling interrupts so that
+ * time passes, until the interactive threads are done. Each of the
+ * <tt>interactive</tt> threads sleeps on the alarm for <tt>sleep</tt> ticks
+ * and then spins for <tt>burst</tt> iterations, <tt>bursts</tt> times. The
+ * response time of an interactive thread is the time from being put on the
+ * ready queue to running, averaged over all such waits. The throughput of
+ * the batch threads is the number of iterations they spun per thousand ticks
+ * while the interactive threads ran.
+ */
+public class ResponseTimeGrader extends AutoGrader {
+	@Override
+	void init() {
+		super.init();
+
+		if (hasArgument("batch"))
+			batch = getIntegerArgument("batch");
+		if (hasArgument("interactive"))
+			interactive = getIntegerArgument("interactive");
+		if (hasArgument("bursts"))
+			bursts = getIntegerArgument("bursts");
+		if (hasArgument("sleep"))
+			sleep = getIntegerArgument("sleep");
+		if (hasArgument("burst"))
+			burst = getIntegerArgument("burst");
+		Lib.assertTrue(batch >= 0, "invalid batch argument");
+		Lib.assertTrue(interactive > 0, "invalid interactive argument");
+		Lib.assertTrue(bursts > 0, "invalid bursts argument");
+		Lib.assertTrue(sleep > 0, "invalid sleep argument");
+		Lib.assertTrue(burst > 0, "invalid burst argument");
+	}
+
+	@Override
+	public void readyThread(KThread thread) {
+		super.readyThread(thread);
+
+		int i = interactiveIndex(thread);
+		if (i >= 0)
+			readyAt[i] = privilege.stats.totalTicks;
+	}
+
+	@Override
+	public void runningThread(KThread thread) {
+		super.runningThread(thread);
+
+		int i = interactiveIndex(thread);
+		if (i >= 0 && readyAt[i] >= 0) {
+			responseTicks += privilege.stats.totalTicks - readyAt[i];
+			responses++;
+			readyAt[i] = -1;
+		}
+	}
+
+	@Override
+	void run() {
+		String scheduler = Config.getString("ThreadedKernel.scheduler");
+
+		KThread[] batchThreads = new KThread[batch];
+		for (int i = 0; i < batch; i++) {
+			batchThreads[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!done) {
+						spin();
+						batchWork++;
+					}
+				}
+			}).setName("batch " + i);
+		}
+
+		interactiveThreads = new KThread[interactive];
+		readyAt = new long[interactive];
+		for (int i = 0; i < interactive; i++) {
+			readyAt[i] = -1;
+			interactiveThreads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < bursts; j++) {
+						ThreadedKernel.alarm.waitUntil(sleep);
+						for (int k = 0; k < burst; k++)
+							spin();
+					}
+				}
+			}).setName("interactive " + i);
+		}
+
+		long start = privilege.stats.totalTicks;
+
+		for (int i = 0; i < batch; i++)
+			batchThreads[i].fork();
+		for (int i = 0; i < interactive; i++)
+			interactiveThreads[i].fork();
+
+		for (int i = 0; i < interactive; i++)
+			interactiveThreads[i].join();
+
+		long elapsed = privilege.stats.totalTicks - start;
+		long work = batchWork;
+
+		done = true;
+		for (int i = 0; i < batch; i++)
+			batchThreads[i].join();
+
+		System.out.println("Response time (" + scheduler + "): " + responses
+				+ " waits, " + (responseTicks / responses)
+				+ " ticks per wait");
+		System.out.println("Response time (" + scheduler + "): batch "
+				+ (work * 1000 / elapsed) + " iterations per 1000 ticks, "
+				+ elapsed + " ticks");
+
+		kernel.terminate();
+	}
+
+	private static void spin() {
+		Machine.interrupt().disable();
+		Machine.interrupt().enable();
+	}
+
+	private int interactiveIndex(KThread thread) {
+		if (interactiveThreads == null)
+			return -1;
+
+		for (int i = 0; i < interactiveThreads.length; i++)
+			if (interactiveThreads[i] == thread)
+				return i;
+		return -1;
+	}
+
+	private int batch = 3;
+	private int interactive = 2;
+	private int bursts = 40;
+	private int sleep = 2000;
+	private int burst = 20;
+
+	private KThread[] interactiveThreads = null;
+	private long[] readyAt;
+	private long responseTicks = 0, responses = 0;
+	private long batchWork = 0;
+	private boolean done = false;
+}
@@ -73,6 +73,7 @@ public class Disk {
 	public static final int NumSectors = (SectorsPerTrack * NumTracks);
 
 	private Privilege privilege;
+	private int readDevice, writeDevice;
 
 	private RandomAccessFile file;// UNIX file for simulated disk
 
@@ -123,6 +124,8 @@ public class Disk {
 		Lib.debug('d', "Initializing the disk\n");
 
 		this.privilege = privilege;
+		readDevice = privilege.interrupt.registerDevice("disk");
+		writeDevice = privilege.interrupt.registerDevice("Disk");
 		handler = callWhenDone;
 		lastSector = 0;
 		bufferInit = 0;
@@ -215,7 +218,7 @@ public class Disk {
 		active = true;
 		updateLast(sectorNumber);
 		privilege.stats.numDiskReads++;
-		privilege.interrupt.schedule((long) ticks, "disk", dskHandler);
+		privilege.interrupt.schedule((long) ticks, readDevice, dskHandler);
 	}
 
 	public void writeRequest(int sectorNumber, byte[] data, int index) {
@@ -240,7 +243,7 @@ public class Disk {
 		active = true;
 		updateLast(sectorNumber);
 		privilege.stats.numDiskWrites++;
-		privilege.interrupt.schedule(ticks, "Disk", dskHandler);
+		privilege.interrupt.schedule(ticks, writeDevice, dskHandler);
 	}
 
 	// ----------------------------------------------------------------------
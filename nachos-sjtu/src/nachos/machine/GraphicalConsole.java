@@ -32,6 +32,9 @@ public final class GraphicalConsole implements SerialConsole {
 	public void init(Privilege privilege) {
 		this.privilege = privilege;
 
+		readDevice = privilege.interrupt.registerDevice("console read");
+		writeDevice = privilege.interrupt.registerDevice("console write");
+
 		receiveInterrupt = new Runnable() {
 			public void run() {
 				receiveInterrupt();
@@ -118,7 +121,7 @@ public final class GraphicalConsole implements SerialConsole {
 	}
 
 	private void scheduleReceiveInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
+		privilege.interrupt.schedule(Stats.ConsoleTime, readDevice,
 				receiveInterrupt);
 	}
 
@@ -151,7 +154,7 @@ public final class GraphicalConsole implements SerialConsole {
 	}
 
 	private void scheduleSendInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
+		privilege.interrupt.schedule(Stats.ConsoleTime, writeDevice,
 				sendInterrupt);
 	}
 
@@ -194,6 +197,7 @@ public final class GraphicalConsole implements SerialConsole {
 	}
 
 	private Privilege privilege;
+	private int readDevice, writeDevice;
 
 	private Runnable receiveInterrupt;
 	private Runnable sendInterrupt;
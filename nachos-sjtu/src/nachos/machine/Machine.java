@@ -92,6 +92,18 @@ public final class Machine {
 		terminate();
 	}
 
+	/**
+	 * Add a handler to be called when Nachos exits, whether it halts, is
+	 * terminated, or fails. Handlers run in the order they were added, without
+	 * privilege.
+	 * 
+	 * @param handler
+	 *            the exit handler.
+	 */
+	public static void addExitHandler(Runnable handler) {
+		privilege.addExitNotificationHandler(handler);
+	}
+
 	/**
 	 * Print stats, and terminate Nachos.
 	 */
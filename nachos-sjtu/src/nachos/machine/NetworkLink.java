@@ -75,6 +75,9 @@ public class NetworkLink {
 
 		this.privilege = privilege;
 
+		receiveDevice = privilege.interrupt.registerDevice("network recv");
+		sendDevice = privilege.interrupt.registerDevice("network send");
+
 		try {
 			localHost = InetAddress.getLocalHost();
 		} catch (UnknownHostException e) {
@@ -160,7 +163,7 @@ public class NetworkLink {
 	}
 
 	private void scheduleReceiveInterrupt() {
-		privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
+		privilege.interrupt.schedule(Stats.NetworkTime, receiveDevice,
 				receiveInterrupt);
 	}
 
@@ -240,7 +243,7 @@ public class NetworkLink {
 	}
 
 	private void scheduleSendInterrupt() {
-		privilege.interrupt.schedule(Stats.NetworkTime, "network send",
+		privilege.interrupt.schedule(Stats.NetworkTime, sendDevice,
 				sendInterrupt);
 	}
 
@@ -309,6 +312,7 @@ public class NetworkLink {
 	}
 
 	private Privilege privilege;
+	private int receiveDevice, sendDevice;
 
 	private Runnable receiveInterrupt;
 	private Runnable sendInterrupt;
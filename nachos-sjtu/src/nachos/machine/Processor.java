@@ -4,6 +4,12 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,11 +52,45 @@ public final class Processor {
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodedInstructions = new Decoded[pageSize * numPhysPages / 4];
+
+		usingEventHorizon = Config.getBoolean("Processor.eventHorizon", false);
+
+		String engine = Config.getString("Processor.engine", "interpreter");
+		if (engine.equals("block")) {
+			usingBlocks = true;
+			// a block only runs as a unit below the event horizon
+			usingEventHorizon = true;
+			blockThreshold = Config.getInteger("Processor.blockThreshold", 16);
+			blocks = new Block[pageSize * numPhysPages / 4];
+			Arrays.fill(readTags, -1);
+			Arrays.fill(writeTags, -1);
+			blockPages = new boolean[numPhysPages];
+			executionCounts = new int[pageSize * numPhysPages / 4];
+		} else {
+			Lib.assertTrue(engine.equals("interpreter"),
+					"unknown Processor.engine " + engine);
+			usingBlocks = false;
+		}
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", 4);
+			Lib.assertTrue(tlbSize > 0, "Processor.tlbSize must be positive");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			usingASIDs = Config.getBoolean("Processor.tlbASIDs", false);
+			tlbASIDs = new int[tlbSize];
+
+			// keep the index at most half full, so probe sequences stay short
+			int indexSize = 1;
+			while (indexSize < tlbSize * 2)
+				indexSize *= 2;
+			tlbIndex = new int[indexSize];
+			tlbIndexCount = new int[indexSize];
+			rebuildTLBIndex();
 		} else {
 			translations = null;
 		}
@@ -93,15 +133,187 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		eventHorizon = 0;
+		codeVersion++;
+
 		while (true) {
+			boolean ticked = false;
+
 			try {
-				inst.run();
+				if (usingBlocks)
+					ticked = runBlock(inst);
+				else
+					inst.run();
 			} catch (MipsException e) {
 				e.handle();
+
+				// the handler may have scheduled interrupts of its own, and
+				// written to memory
+				eventHorizon = 0;
+				codeVersion++;
+			}
+
+			if (!ticked)
+				tick();
+		}
+	}
+
+	/**
+	 * Advance the simulated time after a user instruction.
+	 * 
+	 * <p>
+	 * Without an event horizon this is just <tt>tick(false)</tt> on the
+	 * interrupt controller. With one, the time of the earliest pending
+	 * interrupt is remembered after every full tick, and until the clock
+	 * reaches it the counters are advanced directly. Interrupts can only be
+	 * scheduled by kernel code, which runs only inside a full tick or an
+	 * exception handler, and both of those refresh the horizon, so interrupts
+	 * are delivered at exactly the same simulated time as before.
+	 */
+	private void tick() {
+		Stats stats = privilege.stats;
+
+		if (stats.totalTicks + Stats.UserTick < eventHorizon) {
+			stats.userTicks += Stats.UserTick;
+			stats.totalTicks += Stats.UserTick;
+			return;
+		}
+
+		privilege.interrupt.tick(false);
+		codeVersion++;
+
+		if (usingEventHorizon)
+			eventHorizon = privilege.interrupt.nextPendingTime();
+	}
+
+	/**
+	 * Execute the basic block starting at the current PC, if it has become hot
+	 * enough to be compiled, or else a single instruction.
+	 * 
+	 * <p>
+	 * A compiled block is a run of instructions in one physical page, ending
+	 * with a branch and its delay slot, each turned into an <tt>Op</tt> with
+	 * its operands and branch target already worked out. A block is entered
+	 * only at its first instruction, with the next PC following on. It runs
+	 * as many of its instructions as fit before the event horizon, so that no
+	 * interrupt could have been delivered between them, and time is advanced
+	 * once for all of them. If it reaches the horizon, the instruction that
+	 * does so is the last one run, and its tick is left to the caller. If an
+	 * instruction raises an exception, the PC and time are left as the
+	 * interpreter would have left them before it handles the exception.
+	 * 
+	 * <p>
+	 * Memory can only change under a block through kernel code, which runs
+	 * only inside a full tick or an exception handler, or through a user
+	 * store to a page that holds compiled code. Both bump
+	 * <tt>codeVersion</tt>, and a block checks its code against memory again
+	 * the first time it runs after that. A block is dropped when its code has
+	 * changed or it is reached from another virtual address, and stops early
+	 * after a store to a page holding compiled code.
+	 * 
+	 * @param inst
+	 *            the instruction state to interpret with.
+	 * @return <tt>true</tt> if time has already been advanced for the last
+	 *         instruction executed.
+	 * @exception MipsException
+	 *                if an instruction raised an exception.
+	 */
+	private boolean runBlock(Instruction inst) throws MipsException {
+		// the interpreter traces every fetch, which a block would skip
+		if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble)) {
+			inst.run();
+			return false;
+		}
+
+		int vaddr = registers[regPC];
+		int paddr = translateFetch(vaddr);
+		int slot = paddr >> 2;
+
+		Block block = blocks[slot];
+		if (block != null && !block.matches(vaddr)) {
+			blocks[slot] = null;
+			executionCounts[slot] = 0;
+			block = null;
+		}
+		if (block == null && ++executionCounts[slot] >= blockThreshold) {
+			block = new Block(vaddr, paddr);
+			blocks[slot] = block;
+		}
+
+		// the number of instructions that can tick without reaching the
+		// event horizon
+		long room = (eventHorizon - privilege.stats.totalTicks - 1)
+				/ Stats.UserTick;
+
+		if (block == null || block.length == 0 || room < block.length
+				|| registers[regNextPC] != vaddr + 4) {
+			inst.run(decodedAt(paddr, Lib.bytesToInt(mainMemory, paddr)));
+			return false;
+		}
+
+		while (true) {
+			try {
+				block.code.invokeExact(this);
+			} catch (MipsException e) {
+				leaveBlock(block, blockDone);
+				throw e;
+			} catch (BlockExit e) {
+				leaveBlock(block, blockDone);
+				return true;
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
+				// the compiled instructions throw nothing else
+				throw new Error(e);
 			}
 
-			privilege.interrupt.tick(false);
+			leaveBlock(block, block.length);
+			room -= block.length;
+
+			// no kernel code has run, so the page of the block still maps to
+			// the same frame, and the next block on it can follow directly
+			vaddr = registers[regPC];
+			if ((vaddr & 3) != 0
+					|| pageFromAddress(vaddr) != pageFromAddress(block.vaddr))
+				return true;
+
+			paddr = block.paddr - offsetFromAddress(block.vaddr)
+					+ offsetFromAddress(vaddr);
+			block = blocks[paddr >> 2];
+			if (block == null || block.length == 0 || room < block.length
+					|| !block.matches(vaddr)
+					|| registers[regNextPC] != vaddr + 4)
+				return true;
+		}
+	}
+
+	/**
+	 * Set the PC and time as the interpreter would have done after running the
+	 * first <i>done</i> instructions of a block.
+	 */
+	private void leaveBlock(Block block, int done) {
+		int pc, nextPC;
+
+		if (done <= block.branch) {
+			pc = block.vaddr + done * 4;
+			nextPC = pc + 4;
+		} else if (done == block.branch + 1) {
+			// about to run the delay slot
+			pc = block.vaddr + done * 4;
+			nextPC = branchTarget;
+		} else {
+			pc = branchTarget;
+			nextPC = pc + 4;
 		}
+
+		registers[regPC] = pc;
+		registers[regNextPC] = nextPC;
+
+		privilege.stats.userTicks += done * Stats.UserTick;
+		privilege.stats.totalTicks += done * Stats.UserTick;
 	}
 
 	/**
@@ -178,6 +390,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		translationVersion++;
 	}
 
 	/**
@@ -218,10 +431,176 @@ public final class Processor {
 	 *            the new contents of the TLB entry.
 	 */
 	public void writeTLBEntry(int number, TranslationEntry entry) {
+		writeTLBEntry(number, entry, asid);
+	}
+
+	/**
+	 * Fill the specified TLB entry, tagging it with the specified address
+	 * space identifier instead of the current one.
+	 * 
+	 * @param number
+	 *            the index into the TLB.
+	 * @param entry
+	 *            the new contents of the TLB entry.
+	 * @param asid
+	 *            the ASID to tag the entry with.
+	 */
+	public void writeTLBEntry(int number, TranslationEntry entry, int asid) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(asid == this.asid || hasASIDs());
 
+		unindexTLBEntry(number);
 		translations[number] = new TranslationEntry(entry);
+		tlbASIDs[number] = asid;
+		translationVersion++;
+		indexTLBEntry(number);
+	}
+
+	/**
+	 * Test whether TLB entries are tagged with an address space identifier.
+	 * 
+	 * <p>
+	 * If <tt>true</tt>, every entry written to the TLB is tagged with the
+	 * current ASID, set by <tt>setASID()</tt>, and only entries tagged with
+	 * the current ASID are used to translate addresses. Entries of several
+	 * address spaces can then stay in the TLB across context switches.
+	 * 
+	 * @return <tt>true</tt> if the TLB is tagged with ASIDs.
+	 */
+	public boolean hasASIDs() {
+		return usingTLB && usingASIDs;
+	}
+
+	/**
+	 * Set the address space identifier that TLB entries are written with and
+	 * matched against.
+	 * 
+	 * @param asid
+	 *            the new current ASID.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(hasASIDs());
+
+		if (asid == this.asid)
+			return;
+
+		this.asid = asid;
+		translationVersion++;
+
+		rebuildTLBIndex();
+	}
+
+	/**
+	 * Return the current address space identifier.
+	 * 
+	 * @return the current ASID.
+	 */
+	public int getASID() {
+		Lib.assertTrue(hasASIDs());
+
+		return asid;
+	}
+
+	/**
+	 * Return the address space identifier the specified TLB entry is tagged
+	 * with.
+	 * 
+	 * @param number
+	 *            the index into the TLB.
+	 * @return the ASID of the TLB entry.
+	 */
+	public int readTLBEntryASID(int number) {
+		Lib.assertTrue(hasASIDs());
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return tlbASIDs[number];
+	}
+
+	/**
+	 * Rebuild the hashed vpn index over the TLB. Only valid entries with the
+	 * current ASID are indexed, and if several valid entries map the same
+	 * vpn only the first one is, which is the one a linear search would find.
+	 */
+	private void rebuildTLBIndex() {
+		java.util.Arrays.fill(tlbIndex, -1);
+
+		for (int i = 0; i < tlbSize; i++)
+			indexTLBEntry(i);
+	}
+
+	/**
+	 * Return the bucket of the vpn index holding the specified vpn, or the
+	 * empty bucket where it would go.
+	 */
+	private int findTLBBucket(int vpn) {
+		int mask = tlbIndex.length - 1;
+
+		int h = vpn & mask;
+		while (tlbIndex[h] != -1 && translations[tlbIndex[h]].vpn != vpn)
+			h = (h + 1) & mask;
+
+		return h;
+	}
+
+	/**
+	 * Add the specified TLB entry to the vpn index, if it is valid and has the
+	 * current ASID.
+	 */
+	private void indexTLBEntry(int number) {
+		if (!translations[number].valid || tlbASIDs[number] != asid)
+			return;
+
+		int h = findTLBBucket(translations[number].vpn);
+		if (tlbIndex[h] == -1) {
+			tlbIndex[h] = number;
+			tlbIndexCount[h] = 1;
+		} else {
+			tlbIndexCount[h]++;
+			if (number < tlbIndex[h])
+				tlbIndex[h] = number;
+		}
+	}
+
+	/**
+	 * Remove the specified TLB entry from the vpn index, if it is valid and
+	 * has the current ASID. The bucket is emptied by backward-shift deletion,
+	 * so no tombstones are left for later lookups to probe past.
+	 */
+	private void unindexTLBEntry(int number) {
+		if (!translations[number].valid || tlbASIDs[number] != asid)
+			return;
+
+		int vpn = translations[number].vpn;
+		int h = findTLBBucket(vpn);
+
+		if (--tlbIndexCount[h] > 0) {
+			// another entry maps this vpn, so index the first of the others
+			if (tlbIndex[h] == number) {
+				for (int i = 0; i < tlbSize; i++) {
+					if (i != number && translations[i].valid
+							&& tlbASIDs[i] == asid
+							&& translations[i].vpn == vpn) {
+						tlbIndex[h] = i;
+						break;
+					}
+				}
+			}
+			return;
+		}
+
+		// pull back each later bucket in the run that may fill the hole
+		int mask = tlbIndex.length - 1;
+		int hole = h;
+		for (int i = (hole + 1) & mask; tlbIndex[i] != -1; i = (i + 1) & mask) {
+			int home = translations[tlbIndex[i]].vpn & mask;
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				tlbIndex[hole] = tlbIndex[i];
+				tlbIndexCount[hole] = tlbIndexCount[i];
+				hole = i;
+			}
+		}
+		tlbIndex[hole] = -1;
 	}
 
 	/**
@@ -244,6 +623,34 @@ public final class Processor {
 		return mainMemory;
 	}
 
+	/**
+	 * Discard the pre-decoded instructions cached for a page of physical
+	 * memory. Should be called when a frame is reused to hold a different
+	 * virtual page, so that stale decodings do not pile up.
+	 * 
+	 * <p>
+	 * Cached decodings are also checked against the fetched instruction word,
+	 * so writes made through <tt>getMemory()</tt> are always safe, even
+	 * without calling this method.
+	 * 
+	 * @param ppn
+	 *            the physical page number.
+	 */
+	public void invalidatePage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		int first = ppn * pageSize / 4;
+		java.util.Arrays.fill(decodedInstructions, first, first + pageSize / 4,
+				null);
+
+		if (usingBlocks) {
+			java.util.Arrays.fill(blocks, first, first + pageSize / 4, null);
+			blockPages[ppn] = false;
+			java.util.Arrays.fill(executionCounts, first, first + pageSize / 4,
+					0);
+		}
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -313,7 +720,7 @@ public final class Processor {
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
 			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			throw mipsException.signal(exceptionAddressError, vaddr);
 		}
 
 		// calculate virtual page number and offset from the virtual address
@@ -328,37 +735,38 @@ public final class Processor {
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
+				throw mipsException.signal(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look up the matching TLB entry in the vpn index
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
+			int mask = tlbIndex.length - 1;
+			for (int h = vpn & mask; tlbIndex[h] != -1; h = (h + 1) & mask) {
+				if (translations[tlbIndex[h]].vpn == vpn) {
+					entry = translations[tlbIndex[h]];
 					break;
 				}
 			}
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				throw mipsException.signal(exceptionTLBMiss, vaddr);
 			}
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
 			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			throw mipsException.signal(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			throw mipsException.signal(exceptionBusError, vaddr);
 		}
 
 		// set used and dirty bits as appropriate
@@ -366,6 +774,8 @@ public final class Processor {
 		if (writing)
 			entry.dirty = true;
 
+		lastTranslation = entry;
+
 		int paddr = (ppn * pageSize) + offset;
 
 		if (Lib.test(dbgProcessor))
@@ -373,6 +783,42 @@ public final class Processor {
 		return paddr;
 	}
 
+	/**
+	 * Translate the virtual address of an instruction fetch. Consecutive
+	 * fetches almost always hit the same page, so the last fetch translation
+	 * is remembered and reused for as long as the TLB or page table is not
+	 * changed and the entry stays valid.
+	 * 
+	 * @param vaddr
+	 *            the virtual address of the instruction.
+	 * @return the physical address.
+	 * @exception MipsException
+	 *                if a translation error occurred.
+	 */
+	private int translateFetch(int vaddr) throws MipsException {
+		TranslationEntry entry = fetchEntry;
+
+		if (entry != null && fetchVersion == translationVersion
+				&& (vaddr & 3) == 0 && pageFromAddress(vaddr) == fetchVpn
+				&& (usingTLB || translations[fetchVpn] == entry)
+				&& entry.valid && entry.ppn == fetchPpn
+				&& !Lib.test(dbgProcessor)) {
+			entry.used = true;
+			lastTranslation = entry;
+
+			return (fetchPpn * pageSize) + offsetFromAddress(vaddr);
+		}
+
+		int paddr = translate(vaddr, 4, false);
+
+		fetchEntry = lastTranslation;
+		fetchVpn = pageFromAddress(vaddr);
+		fetchPpn = fetchEntry.ppn;
+		fetchVersion = translationVersion;
+
+		return paddr;
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -402,6 +848,51 @@ public final class Processor {
 		return value;
 	}
 
+	/**
+	 * Fetch the instruction at <i>vaddr</i>, reusing its pre-decoded form if
+	 * the same instruction word was last fetched from the same physical
+	 * address.
+	 * 
+	 * @param vaddr
+	 *            the virtual address of the instruction.
+	 * @return the decoded instruction.
+	 * @exception MipsException
+	 *                if a translation error occurred.
+	 */
+	private Decoded fetchDecoded(int vaddr) throws MipsException {
+		if (Lib.test(dbgProcessor))
+			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+					+ ", size=4");
+
+		int paddr = translateFetch(vaddr);
+		int value = Lib.bytesToInt(mainMemory, paddr);
+
+		if (Lib.test(dbgProcessor))
+			System.out.println("\t\tvalue read=0x" + Lib.toHexString(value, 8));
+
+		return decodedAt(paddr, value);
+	}
+
+	/**
+	 * Return the pre-decoded form of the instruction word <i>value</i>, found
+	 * at physical address <i>paddr</i>, decoding it if necessary.
+	 * 
+	 * @param paddr
+	 *            the physical address of the instruction.
+	 * @param value
+	 *            the instruction word stored there.
+	 * @return the decoded instruction.
+	 */
+	private Decoded decodedAt(int paddr, int value) {
+		Decoded decoded = decodedInstructions[paddr >> 2];
+		if (decoded == null || decoded.value != value) {
+			decoded = new Decoded(value);
+			decodedInstructions[paddr >> 2] = decoded;
+		}
+
+		return decoded;
+	}
+
 	/**
 	 * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
 	 * starting at <i>vaddr</i>.
@@ -423,7 +914,14 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		// self-modifying code: drop the decoding of the word just written
+		decodedInstructions[paddr >> 2] = null;
+		if (usingBlocks && blockPages[paddr / pageSize])
+			codeVersion++;
 	}
 
 	/**
@@ -555,6 +1053,25 @@ public final class Processor {
 	private boolean usingTLB;
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
+	/** <tt>true</tt> if TLB entries are tagged with an ASID. */
+	private boolean usingASIDs;
+	/** The ASID of each TLB entry; all 0 unless using ASIDs. */
+	private int[] tlbASIDs;
+	/** The current ASID. */
+	private int asid = 0;
+	/**
+	 * Open-addressed hash index from vpn to TLB slot, or -1 for an empty
+	 * bucket. Its size is a power of two.
+	 */
+	private int[] tlbIndex;
+	/** The number of indexed TLB entries mapping the vpn of each bucket. */
+	private int[] tlbIndexCount;
+	/** The entry used by the last instruction fetch translation. */
+	private TranslationEntry fetchEntry = null;
+	/** The vpn and ppn of the last instruction fetch translation. */
+	private int fetchVpn, fetchPpn;
+	/** The translation version at the last instruction fetch translation. */
+	private int fetchVersion;
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -569,9 +1086,48 @@ public final class Processor {
 	private int numPhysPages;
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
+	/** Pre-decoded instructions, indexed by physical word address. */
+	private Decoded[] decodedInstructions;
+
+	/**
+	 * <tt>true</tt> if time may be advanced without a full interrupt check
+	 * until the next pending interrupt is due.
+	 */
+	private boolean usingEventHorizon;
+	/**
+	 * The time of the next pending interrupt, as of the last full tick, or 0 if
+	 * the next tick must be a full one.
+	 */
+	private long eventHorizon = 0;
+
+	/** <tt>true</tt> if hot basic blocks are compiled and run as a unit. */
+	private boolean usingBlocks;
+	/** Executions of a block entry point before it is compiled. */
+	private int blockThreshold;
+	/** Compiled blocks, indexed by the physical word address of the entry. */
+	private Block[] blocks;
+	/** Executions of each uncompiled block entry point. */
+	private int[] executionCounts;
+	/** <tt>true</tt> for each physical page that holds compiled blocks. */
+	private boolean[] blockPages;
+	/** Bumped whenever memory holding compiled code may have changed. */
+	private int codeVersion = 0;
+	/** The PC a compiled branch goes on to after its delay slot. */
+	private int branchTarget;
+	/**
+	 * The number of instructions of the running block that completed before
+	 * it was left early.
+	 */
+	private int blockDone;
+	/** The translation entry used by the last successful translation. */
+	private TranslationEntry lastTranslation;
+	/** Incremented whenever the TLB or page table pointer changes. */
+	private int translationVersion = 0;
 
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
+	/** The exception raised for every user exception. */
+	private final MipsException mipsException = new MipsException();
 
 	private static final char dbgProcessor = 'p';
 	private static final char dbgDisassemble = 'm';
@@ -583,22 +1139,41 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * A user mode exception. A processor raises all of its exceptions through
+	 * a single preallocated instance, which never captures a stack trace, so
+	 * that TLB misses and syscalls do not allocate.
+	 */
 	@SuppressWarnings("serial")
 	private class MipsException extends Exception {
-		public MipsException(int cause) {
+		public MipsException signal(int cause) {
 			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
 			this.cause = cause;
+			hasBadVAddr = false;
+
+			return this;
 		}
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+		public MipsException signal(int cause, int badVAddr) {
+			signal(cause);
 
 			hasBadVAddr = true;
 			this.badVAddr = badVAddr;
+
+			return this;
+		}
+
+		public Throwable fillInStackTrace() {
+			return this;
 		}
 
 		public void handle() {
+			// the kernel handler may switch to another thread that raises an
+			// exception of its own, so finish with the fields first
+			int cause = this.cause, badVAddr = this.badVAddr;
+			boolean hasBadVAddr = this.hasBadVAddr;
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
@@ -631,6 +1206,18 @@ public final class Processor {
 			writeBack();
 		}
 
+		public void run(Decoded decoded) throws MipsException {
+			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+					|| Lib.test(dbgFullDisassemble))
+				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+						+ "\t");
+
+			this.decoded = decoded;
+			decode();
+			execute();
+			writeBack();
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
@@ -641,78 +1228,45 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			decoded = fetchDecoded(registers[regPC]);
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
-
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
-
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			// everything that depends only on the instruction word was worked
+			// out once, when the word was first fetched
+			value = decoded.value;
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + decoded.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -876,14 +1430,13 @@ public final class Processor {
 				registers[regHi] = (int) Lib.extract(dst, 32, 32);
 				break;
 			case Mips.DIV:
-				try {
-					registers[regLo] = (int) (src1 / src2);
-					registers[regHi] = (int) (src1 % src2);
-					if (registers[regLo] * src2 + registers[regHi] != src1)
-						throw new ArithmeticException();
-				} catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
-				}
+				if (src2 == 0)
+					throw mipsException.signal(exceptionOverflow);
+
+				registers[regLo] = (int) (src1 / src2);
+				registers[regHi] = (int) (src1 % src2);
+				if (registers[regLo] * src2 + registers[regHi] != src1)
+					throw mipsException.signal(exceptionOverflow);
 				break;
 
 			case Mips.SLL:
@@ -952,7 +1505,7 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				throw mipsException.signal(exceptionSyscall);
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -1023,7 +1576,7 @@ public final class Processor {
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				throw mipsException.signal(exceptionIllegalInstruction);
 
 			default:
 				Lib.assertNotReached();
@@ -1039,7 +1592,7 @@ public final class Processor {
 			 */
 			if (test(Mips.OVERFLOW)
 					&& Lib.test(dst, 1L << 31) != Lib.test(dst, 1L << 32))
-				throw new MipsException(exceptionOverflow);
+				throw mipsException.signal(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1072,6 +1625,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
+		Decoded decoded;
 		int value, op, rs, rt, rd, sh, func, target, imm;
 		int operation, format, flags;
 		String name;
@@ -1083,6 +1637,932 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * The parts of a decoded instruction that depend only on the instruction
+	 * word, and not on any register.
+	 */
+	private static class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			int signedImm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch offsets always use the sign-extended immediate
+			branchOffset = signedImm << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm = signedImm & 0xFFFF;
+			else
+				imm = signedImm;
+		}
+
+		final int value, op, rs, rt, rd, sh, func, target, imm;
+		final int operation, format, flags;
+		final String name;
+		final int size, dstReg, branchOffset;
+	}
+
+	/**
+	 * A compiled basic block: the instructions from an entry point up to and
+	 * including the delay slot of the first branch, or up to the end of the
+	 * page or the first instruction that always traps. A branch whose delay
+	 * slot traps or branches again is left to the interpreter.
+	 *
+	 * <p>
+	 * Each instruction is compiled into a method handle on one of the small
+	 * methods below that carry out a single kind of instruction, with its
+	 * registers, immediate and branch target bound in as constants. The
+	 * handles are chained into one that runs the whole block. After a block
+	 * has run a few hundred times, the JVM turns that handle into a class of
+	 * its own and compiles it, with those methods inlined and specialized for
+	 * the constants, much as if bytecode had been generated for the block.
+	 */
+	private class Block {
+		Block(int vaddr, int paddr) {
+			this.vaddr = vaddr;
+			this.paddr = paddr;
+			blockPages[paddr / pageSize] = true;
+
+			int end = (paddr / pageSize + 1) * pageSize;
+			Decoded[] found = new Decoded[(end - paddr) / 4];
+			int length = 0;
+			int branch = found.length;
+
+			for (int p = paddr; p < end; p += 4) {
+				Decoded decoded = decodedAt(p, Lib.bytesToInt(mainMemory, p));
+				if (traps(decoded))
+					break;
+
+				if (Lib.test(Mips.BRANCH, decoded.flags)) {
+					if (p + 4 < end) {
+						Decoded delay = decodedAt(p + 4, Lib.bytesToInt(
+								mainMemory, p + 4));
+						if (traps(delay) || Lib.test(Mips.BRANCH, delay.flags))
+							break;
+
+						found[length + 1] = delay;
+					}
+					found[length] = decoded;
+					branch = length;
+					length += (p + 4 < end) ? 2 : 1;
+					break;
+				}
+
+				found[length] = decoded;
+				length++;
+			}
+
+			this.length = length;
+			this.branch = Math.min(branch, length);
+
+			// an empty block still remembers the word that ended it
+			values = new int[Math.max(length, 1)];
+			for (int i = 0; i < values.length; i++)
+				values[i] = Lib.bytesToInt(mainMemory, paddr + i * 4);
+			checkedVersion = codeVersion;
+
+			if (length == 0) {
+				code = null;
+				return;
+			}
+
+			// the same words at the same address always compile to the same
+			// code, which the JVM may well have compiled already, even if
+			// they were loaded into another frame
+			CodeKey key = new CodeKey(vaddr, values);
+			MethodHandle compiledCode = codeCache.get(key);
+			if (compiledCode == null) {
+				if (codeCache.size() >= maxCachedBlocks)
+					codeCache.clear();
+
+				MethodHandle[] compiled = new MethodHandle[length];
+				// the first instruction may have to finish an earlier load
+				boolean finish = true;
+
+				for (int i = 0; i < length; i++) {
+					if (i == branch)
+						compiled[i] = compileBranch(found[i], vaddr + i * 4,
+								finish);
+					else
+						compiled[i] = compile(found[i], i, finish);
+
+					finish = Lib.test(Mips.DELAYEDLOAD, found[i].flags);
+				}
+
+				compiledCode = sequence(compiled, 0, length);
+				codeCache.put(key, compiledCode);
+			}
+			code = compiledCode;
+		}
+
+		/**
+		 * Test whether this block can run from <i>vaddr</i>: it was compiled
+		 * at that address and its code has not changed since.
+		 */
+		boolean matches(int vaddr) {
+			if (vaddr != this.vaddr)
+				return false;
+			if (checkedVersion == codeVersion)
+				return true;
+
+			for (int i = 0; i < values.length; i++)
+				if (Lib.bytesToInt(mainMemory, paddr + i * 4) != values[i])
+					return false;
+
+			checkedVersion = codeVersion;
+			return true;
+		}
+
+		private boolean traps(Decoded decoded) {
+			return decoded.operation == Mips.SYSCALL
+					|| decoded.operation == Mips.UNIMPL
+					|| decoded.operation == Mips.INVALID;
+		}
+
+		/**
+		 * Compile the instruction at position <i>index</i>, which is not a
+		 * branch. <i>finish</i> is <tt>false</tt> if no delayed load can be in
+		 * progress when it runs.
+		 */
+		private MethodHandle compile(Decoded decoded, int index,
+				boolean finish) {
+			int rs = decoded.rs, rt = decoded.rt, imm = decoded.imm;
+			int dst = Lib.test(Mips.DST, decoded.flags) ? decoded.dstReg : 0;
+			boolean immediate = Lib.test(Mips.SRC2IMM, decoded.flags);
+			boolean unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+
+			switch (decoded.operation) {
+			case Mips.LOAD:
+				// unsigned loads are sign-extended too, as by the interpreter
+				String load = (decoded.size == 4) ? "lw"
+						: (decoded.size == 2) ? "lh" : "lb";
+				return op(load, decoded.dstReg, rs, imm, index);
+			case Mips.STORE:
+				String store = (decoded.size == 4) ? "sw"
+						: (decoded.size == 2) ? "sh" : "sb";
+				return op(store, rt, rs, imm, finish, index);
+			case Mips.LWL:
+			case Mips.LWR:
+			case Mips.SWL:
+			case Mips.SWR:
+				return op("memoryOp", decoded.operation, rs, rt, imm,
+						decoded.dstReg, finish, index);
+			case Mips.MULT:
+			case Mips.DIV:
+				return op("aluOp", decoded.operation, rs, rt, decoded.sh, imm,
+						decoded.flags, dst, finish, index);
+			case Mips.MTLO:
+				return op("move", regLo, rs, finish);
+			case Mips.MTHI:
+				return op("move", regHi, rs, finish);
+			}
+
+			if (Lib.test(Mips.OVERFLOW, decoded.flags))
+				return op("aluOp", decoded.operation, rs, rt, decoded.sh, imm,
+						decoded.flags, dst, finish, index);
+
+			// the rest only write dst, and never r0
+			if (dst == 0)
+				return op("nop", finish);
+
+			switch (decoded.operation) {
+			case Mips.ADD:
+				return immediate ? op("addiu", dst, rs, imm, finish) : op(
+						"addu", dst, rs, rt, finish);
+			case Mips.SUB:
+				return op("subu", dst, rs, rt, finish);
+			case Mips.SLL:
+				return Lib.test(Mips.SRC1SH, decoded.flags) ? op("sll", dst,
+						rt, decoded.sh, finish) : op("sllv", dst, rt, rs,
+						finish);
+			case Mips.SRA:
+				return Lib.test(Mips.SRC1SH, decoded.flags) ? op("sra", dst,
+						rt, decoded.sh, finish) : op("srav", dst, rt, rs,
+						finish);
+			case Mips.SRL:
+				return Lib.test(Mips.SRC1SH, decoded.flags) ? op("srl", dst,
+						rt, decoded.sh, finish) : op("srlv", dst, rt, rs,
+						finish);
+			case Mips.SLT:
+				if (unsigned)
+					return immediate ? op("sltiu", dst, rs, imm, finish) : op(
+							"sltu", dst, rs, rt, finish);
+				return immediate ? op("slti", dst, rs, imm, finish) : op(
+						"slt", dst, rs, rt, finish);
+			case Mips.AND:
+				return immediate ? op("andi", dst, rs, imm, finish) : op(
+						"and", dst, rs, rt, finish);
+			case Mips.OR:
+				return immediate ? op("ori", dst, rs, imm, finish) : op("or",
+						dst, rs, rt, finish);
+			case Mips.XOR:
+				return immediate ? op("xori", dst, rs, imm, finish) : op(
+						"xor", dst, rs, rt, finish);
+			case Mips.NOR:
+				return op("nor", dst, rs, rt, finish);
+			case Mips.LUI:
+				return op("lui", dst, imm << 16, finish);
+			case Mips.MFLO:
+				return op("move", dst, regLo, finish);
+			case Mips.MFHI:
+				return op("move", dst, regHi, finish);
+			default:
+				Lib.assertNotReached();
+				return null;
+			}
+		}
+
+		/**
+		 * Compile the branch at <i>pc</i>.
+		 */
+		private MethodHandle compileBranch(Decoded decoded, int pc,
+				boolean finish) {
+			int rs = decoded.rs, rt = decoded.rt;
+			int link = Lib.test(Mips.LINK, decoded.flags)
+					&& Lib.test(Mips.DST, decoded.flags) ? decoded.dstReg : 0;
+			int next = pc + 8;
+
+			if (decoded.format == Mips.RFMT)
+				return op("jr", rs, link, next, finish);
+			if (decoded.format == Mips.JFMT)
+				return op("j", ((pc + 4) & 0xF0000000) | (decoded.target << 2),
+						link, next, finish);
+
+			int target = pc + 4 + decoded.branchOffset;
+
+			switch (decoded.operation) {
+			case Mips.BEQ:
+				return op("beq", rs, rt, target, next, finish);
+			case Mips.BNE:
+				return op("bne", rs, rt, target, next, finish);
+			case Mips.BGEZ:
+				return op("bgez", rs, target, link, next, finish);
+			case Mips.BGTZ:
+				return op("bgtz", rs, target, link, next, finish);
+			case Mips.BLEZ:
+				return op("blez", rs, target, link, next, finish);
+			case Mips.BLTZ:
+				return op("bltz", rs, target, link, next, finish);
+			default:
+				Lib.assertNotReached();
+				return null;
+			}
+		}
+
+		/**
+		 * Return a handle that runs <i>ops</i> from <i>from</i> up to
+		 * <i>to</i> in order. The handles are paired off as a balanced tree,
+		 * which keeps the calls the JVM has to inline shallow.
+		 */
+		private MethodHandle sequence(MethodHandle[] ops, int from, int to) {
+			if (to - from == 1)
+				return ops[from];
+
+			int middle = (from + to) >>> 1;
+			return MethodHandles.foldArguments(sequence(ops, middle, to),
+					sequence(ops, from, middle));
+		}
+
+		final int vaddr, paddr;
+		/** The number of instructions in the block. */
+		final int length;
+		/** The index of the branch in the block, or its length if none. */
+		final int branch;
+		/** Runs the whole block on the processor it is passed. */
+		final MethodHandle code;
+		/** The instruction words the block was compiled from. */
+		final int[] values;
+		/** The <tt>codeVersion</tt> when the words were last checked. */
+		private int checkedVersion;
+	}
+
+	/**
+	 * The virtual address and instruction words of a block, which are all its
+	 * compiled code depends on.
+	 */
+	private static class CodeKey {
+		CodeKey(int vaddr, int[] values) {
+			this.vaddr = vaddr;
+			this.values = values;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof CodeKey))
+				return false;
+
+			CodeKey key = (CodeKey) o;
+			return vaddr == key.vaddr && Arrays.equals(values, key.values);
+		}
+
+		public int hashCode() {
+			return vaddr * 31 + Arrays.hashCode(values);
+		}
+
+		private final int vaddr;
+		private final int[] values;
+	}
+
+	/**
+	 * Thrown by a compiled store to a page holding compiled code, to leave the
+	 * block after it.
+	 */
+	private static class BlockExit extends RuntimeException {
+		public Throwable fillInStackTrace() {
+			return this;
+		}
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Return a handle on the compiled instruction method <i>name</i>, with
+	 * <i>args</i> bound after the processor.
+	 */
+	private static MethodHandle op(String name, Object... args) {
+		MethodHandle handle = opHandles.get(name);
+		if (handle == null) {
+			for (Method method : Processor.class.getDeclaredMethods()) {
+				if (method.getName().equals(name)) {
+					Lib.assertTrue(handle == null);
+					try {
+						handle = MethodHandles.lookup().unreflect(method);
+					} catch (IllegalAccessException e) {
+						throw new Error(e);
+					}
+				}
+			}
+			opHandles.put(name, handle);
+		}
+
+		return MethodHandles.insertArguments(handle, 1, args);
+	}
+
+	/*
+	 * The compiled instructions. Each does what the interpreter's execute and
+	 * write-back steps would for one kind of instruction, in the same order,
+	 * except for advancing the PC, which is left to the block. Their
+	 * arguments are bound in when a block is compiled: the registers, with
+	 * dst never 0, the immediate, finish to complete a delayed load begun by
+	 * the instruction before, and the index of the instruction in its block,
+	 * which becomes blockDone if the instruction raises an exception.
+	 */
+
+	private void nop(boolean finish) {
+		if (finish)
+			finishLoad();
+	}
+
+	private void addu(int dst, int rs, int rt, boolean finish) {
+		int value = registers[rs] + registers[rt];
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void addiu(int dst, int rs, int imm, boolean finish) {
+		int value = registers[rs] + imm;
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void subu(int dst, int rs, int rt, boolean finish) {
+		int value = registers[rs] - registers[rt];
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void sll(int dst, int rt, int sh, boolean finish) {
+		int value = registers[rt] << sh;
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void sllv(int dst, int rt, int rs, boolean finish) {
+		int value = registers[rt] << registers[rs];
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	// the interpreter shifts the sign-extended register, so that srl shifts
+	// copies of the sign bit in just as sra does
+
+	private void sra(int dst, int rt, int sh, boolean finish) {
+		int value = registers[rt] >> sh;
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void srav(int dst, int rt, int rs, boolean finish) {
+		int value = registers[rt] >> registers[rs];
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void srl(int dst, int rt, int sh, boolean finish) {
+		int value = (int) ((long) registers[rt] >>> sh);
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void srlv(int dst, int rt, int rs, boolean finish) {
+		int value = (int) ((long) registers[rt] >>> (registers[rs] & 0x1F));
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void slt(int dst, int rs, int rt, boolean finish) {
+		int value = (registers[rs] < registers[rt]) ? 1 : 0;
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void slti(int dst, int rs, int imm, boolean finish) {
+		int value = (registers[rs] < imm) ? 1 : 0;
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void sltu(int dst, int rs, int rt, boolean finish) {
+		int value = ((registers[rs] ^ 0x80000000) < (registers[rt]
+				^ 0x80000000)) ? 1 : 0;
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void sltiu(int dst, int rs, int imm, boolean finish) {
+		int value = ((registers[rs] ^ 0x80000000) < (imm ^ 0x80000000)) ? 1
+				: 0;
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void and(int dst, int rs, int rt, boolean finish) {
+		int value = registers[rs] & registers[rt];
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void andi(int dst, int rs, int imm, boolean finish) {
+		int value = registers[rs] & imm;
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void or(int dst, int rs, int rt, boolean finish) {
+		int value = registers[rs] | registers[rt];
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void ori(int dst, int rs, int imm, boolean finish) {
+		int value = registers[rs] | imm;
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void xor(int dst, int rs, int rt, boolean finish) {
+		int value = registers[rs] ^ registers[rt];
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void xori(int dst, int rs, int imm, boolean finish) {
+		int value = registers[rs] ^ imm;
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void nor(int dst, int rs, int rt, boolean finish) {
+		int value = ~(registers[rs] | registers[rt]);
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void lui(int dst, int value, boolean finish) {
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	private void move(int dst, int src, boolean finish) {
+		int value = registers[src];
+		if (finish)
+			finishLoad();
+		registers[dst] = value;
+	}
+
+	/**
+	 * Any arithmetic instruction, including those that can overflow.
+	 */
+	private void aluOp(int operation, int rs, int rt, int sh, int imm,
+			int flags, int dst, boolean finish, int index)
+			throws MipsException {
+		long src1 = Lib.test(Mips.SRC1SH, flags) ? sh : registers[rs];
+		long src2 = Lib.test(Mips.SRC2IMM, flags) ? imm : registers[rt];
+		if (Lib.test(Mips.UNSIGNED, flags)) {
+			src1 &= 0xFFFFFFFFL;
+			src2 &= 0xFFFFFFFFL;
+		}
+
+		long result = 0;
+
+		switch (operation) {
+		case Mips.ADD:
+			result = src1 + src2;
+			break;
+		case Mips.SUB:
+			result = src1 - src2;
+			break;
+		case Mips.MULT:
+			result = src1 * src2;
+			registers[regLo] = (int) Lib.extract(result, 0, 32);
+			registers[regHi] = (int) Lib.extract(result, 32, 32);
+			break;
+		case Mips.DIV:
+			if (src2 == 0) {
+				blockDone = index;
+				throw mipsException.signal(exceptionOverflow);
+			}
+
+			registers[regLo] = (int) (src1 / src2);
+			registers[regHi] = (int) (src1 % src2);
+			if (registers[regLo] * src2 + registers[regHi] != src1) {
+				blockDone = index;
+				throw mipsException.signal(exceptionOverflow);
+			}
+			break;
+		case Mips.SLL:
+			result = src2 << (src1 & 0x1F);
+			break;
+		case Mips.SRA:
+			result = src2 >> (src1 & 0x1F);
+			break;
+		case Mips.SRL:
+			result = src2 >>> (src1 & 0x1F);
+			break;
+		case Mips.SLT:
+			result = (src1 < src2) ? 1 : 0;
+			break;
+		case Mips.AND:
+			result = src1 & src2;
+			break;
+		case Mips.OR:
+			result = src1 | src2;
+			break;
+		case Mips.NOR:
+			result = ~(src1 | src2);
+			break;
+		case Mips.XOR:
+			result = src1 ^ src2;
+			break;
+		case Mips.LUI:
+			result = imm << 16;
+			break;
+		default:
+			Lib.assertNotReached();
+		}
+
+		if (Lib.test(Mips.OVERFLOW, flags)
+				&& Lib.test(result, 1L << 31) != Lib.test(result, 1L << 32)) {
+			blockDone = index;
+			throw mipsException.signal(exceptionOverflow);
+		}
+
+		if (finish)
+			finishLoad();
+
+		if (dst != 0)
+			registers[dst] = (int) result;
+	}
+
+	private void lw(int dst, int rs, int imm, int index) throws MipsException {
+		int paddr = readAddress(registers[rs] + imm, 4, index);
+		delayedLoad(dst, Lib.bytesToInt(mainMemory, paddr), 0xFFFFFFFF);
+	}
+
+	private void lh(int dst, int rs, int imm, int index) throws MipsException {
+		int paddr = readAddress(registers[rs] + imm, 2, index);
+		delayedLoad(dst, Lib.bytesToShort(mainMemory, paddr), 0xFFFFFFFF);
+	}
+
+	private void lb(int dst, int rs, int imm, int index) throws MipsException {
+		int paddr = readAddress(registers[rs] + imm, 1, index);
+		delayedLoad(dst, mainMemory[paddr], 0xFFFFFFFF);
+	}
+
+	private void sw(int rt, int rs, int imm, boolean finish, int index)
+			throws MipsException {
+		int paddr = writeAddress(registers[rs] + imm, 4, index);
+		Lib.bytesFromInt(mainMemory, paddr, registers[rt]);
+		if (finish)
+			finishLoad();
+		stored(paddr, index);
+	}
+
+	private void sh(int rt, int rs, int imm, boolean finish, int index)
+			throws MipsException {
+		int paddr = writeAddress(registers[rs] + imm, 2, index);
+		Lib.bytesFromShort(mainMemory, paddr, (short) registers[rt]);
+		if (finish)
+			finishLoad();
+		stored(paddr, index);
+	}
+
+	private void sb(int rt, int rs, int imm, boolean finish, int index)
+			throws MipsException {
+		int paddr = writeAddress(registers[rs] + imm, 1, index);
+		mainMemory[paddr] = (byte) registers[rt];
+		if (finish)
+			finishLoad();
+		stored(paddr, index);
+	}
+
+	/**
+	 * An unaligned load or store.
+	 */
+	private void memoryOp(int operation, int rs, int rt, int imm, int dst,
+			boolean finish, int index) throws MipsException {
+		int addr = registers[rs] + imm;
+		long src2 = registers[rt];
+		int value, preserved, mask, version = codeVersion;
+		long result;
+
+		try {
+			switch (operation) {
+			case Mips.LWL:
+				value = readMem(addr & ~0x3, 4);
+				preserved = (3 - (addr & 0x3)) * 8;
+				mask = -1 << preserved;
+				result = value << preserved;
+				delayedLoad(dst, (int) result, mask);
+				return;
+			case Mips.LWR:
+				value = readMem(addr & ~0x3, 4);
+				preserved = (addr & 0x3) * 8;
+				mask = -1 >>> preserved;
+				result = value >>> preserved;
+				delayedLoad(dst, (int) result, mask);
+				return;
+			case Mips.SWL:
+				value = readMem(addr & ~0x3, 4);
+				preserved = (3 - (addr & 0x3)) * 8;
+				mask = -1 >>> preserved;
+				result = src2 >>> preserved;
+				result = (result & mask) | (value & ~mask);
+				writeMem(addr & ~0x3, 4, (int) result);
+				break;
+			case Mips.SWR:
+				value = readMem(addr & ~0x3, 4);
+				preserved = (addr & 0x3) * 8;
+				mask = -1 << preserved;
+				result = src2 << preserved;
+				result = (result & mask) | (value & ~mask);
+				writeMem(addr & ~0x3, 4, (int) result);
+				break;
+			default:
+				Lib.assertNotReached();
+			}
+		} catch (MipsException e) {
+			blockDone = index;
+			throw e;
+		}
+
+		if (finish)
+			finishLoad();
+
+		// writeMem() bumps the version on a store to compiled code
+		if (codeVersion != version) {
+			blockDone = index + 1;
+			throw blockExit;
+		}
+	}
+
+	private void beq(int rs, int rt, int target, int next, boolean finish) {
+		boolean taken = (registers[rs] == registers[rt]);
+		if (finish)
+			finishLoad();
+		branchTarget = taken ? target : next;
+	}
+
+	private void bne(int rs, int rt, int target, int next, boolean finish) {
+		boolean taken = (registers[rs] != registers[rt]);
+		if (finish)
+			finishLoad();
+		branchTarget = taken ? target : next;
+	}
+
+	private void bgez(int rs, int target, int link, int next, boolean finish) {
+		boolean taken = (registers[rs] >= 0);
+		if (finish)
+			finishLoad();
+		if (link != 0)
+			registers[link] = next;
+		branchTarget = taken ? target : next;
+	}
+
+	private void bgtz(int rs, int target, int link, int next, boolean finish) {
+		boolean taken = (registers[rs] > 0);
+		if (finish)
+			finishLoad();
+		if (link != 0)
+			registers[link] = next;
+		branchTarget = taken ? target : next;
+	}
+
+	private void blez(int rs, int target, int link, int next, boolean finish) {
+		boolean taken = (registers[rs] <= 0);
+		if (finish)
+			finishLoad();
+		if (link != 0)
+			registers[link] = next;
+		branchTarget = taken ? target : next;
+	}
+
+	private void bltz(int rs, int target, int link, int next, boolean finish) {
+		boolean taken = (registers[rs] < 0);
+		if (finish)
+			finishLoad();
+		if (link != 0)
+			registers[link] = next;
+		branchTarget = taken ? target : next;
+	}
+
+	private void j(int target, int link, int next, boolean finish) {
+		if (finish)
+			finishLoad();
+		if (link != 0)
+			registers[link] = next;
+		branchTarget = target;
+	}
+
+	private void jr(int rs, int link, int next, boolean finish) {
+		int target = registers[rs];
+		if (finish)
+			finishLoad();
+		if (link != 0)
+			registers[link] = next;
+		branchTarget = target;
+	}
+
+	/**
+	 * Translate the address of a compiled load, through the read translation
+	 * cache.
+	 */
+	private int readAddress(int vaddr, int size, int index)
+			throws MipsException {
+		long tag = ((long) codeVersion << 32) | pageFromAddress(vaddr);
+		int slot = (int) tag & (dataCacheSize - 1);
+		if (readTags[slot] == tag && (vaddr & (size - 1)) == 0)
+			return readPages[slot] + offsetFromAddress(vaddr);
+
+		return translateData(vaddr, size, false, index);
+	}
+
+	/**
+	 * Translate the address of a compiled store, through the write
+	 * translation cache.
+	 */
+	private int writeAddress(int vaddr, int size, int index)
+			throws MipsException {
+		long tag = ((long) codeVersion << 32) | pageFromAddress(vaddr);
+		int slot = (int) tag & (dataCacheSize - 1);
+		if (writeTags[slot] == tag && (vaddr & (size - 1)) == 0)
+			return writePages[slot] + offsetFromAddress(vaddr);
+
+		return translateData(vaddr, size, true, index);
+	}
+
+	/**
+	 * Translate the address of a compiled load or store the slow way, and
+	 * remember the page for as long as <tt>codeVersion</tt> stays the same.
+	 * That is, until kernel code may have run, which is the only time a page
+	 * table, TLB or translation entry can change, or the used and dirty bits
+	 * just set by <tt>translate()</tt> be cleared.
+	 */
+	private int translateData(int vaddr, int size, boolean writing, int index)
+			throws MipsException {
+		int paddr;
+		try {
+			paddr = translate(vaddr, size, writing);
+		} catch (MipsException e) {
+			blockDone = index;
+			throw e;
+		}
+
+		long tag = ((long) codeVersion << 32) | pageFromAddress(vaddr);
+		int slot = (int) tag & (dataCacheSize - 1);
+		if (writing) {
+			writeTags[slot] = tag;
+			writePages[slot] = paddr - offsetFromAddress(vaddr);
+		} else {
+			readTags[slot] = tag;
+			readPages[slot] = paddr - offsetFromAddress(vaddr);
+		}
+
+		return paddr;
+	}
+
+	/**
+	 * Finish a compiled store to physical address <i>paddr</i>. A store to a
+	 * page holding compiled code leaves the block, since it may have changed
+	 * the instructions that follow.
+	 */
+	private void stored(int paddr, int index) {
+		decodedInstructions[paddr >> 2] = null;
+		if (blockPages[paddr / pageSize]) {
+			codeVersion++;
+			blockDone = index + 1;
+			throw blockExit;
+		}
+	}
+
+	private static final BlockExit blockExit = new BlockExit();
+	/** The compiled instruction methods, by name. */
+	private static final HashMap<String, MethodHandle> opHandles =
+			new HashMap<String, MethodHandle>();
+	/**
+	 * Compiled code, by the virtual address and words of the block, shared by
+	 * every process and frame.
+	 */
+	private final HashMap<CodeKey, MethodHandle> codeCache =
+			new HashMap<CodeKey, MethodHandle>();
+	/** The most blocks kept in <tt>codeCache</tt> before it is emptied. */
+	private static final int maxCachedBlocks = 4096;
+
+	/** The number of pages in each data translation cache, a power of two. */
+	private static final int dataCacheSize = 16;
+	/** The <tt>codeVersion</tt> and vpn of each cached translation. */
+	private final long[] readTags = new long[dataCacheSize],
+			writeTags = new long[dataCacheSize];
+	/** The physical address of the page of each cached translation. */
+	private final int[] readPages = new int[dataCacheSize],
+			writePages = new int[dataCacheSize];
+
 	private static class Mips {
 		Mips() {
 		}
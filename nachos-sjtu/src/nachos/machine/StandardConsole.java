@@ -21,6 +21,9 @@ public class StandardConsole implements SerialConsole {
 
 		this.privilege = privilege;
 
+		readDevice = privilege.interrupt.registerDevice("console read");
+		writeDevice = privilege.interrupt.registerDevice("console write");
+
 		receiveInterrupt = new Runnable() {
 			public void run() {
 				receiveInterrupt();
@@ -43,7 +46,7 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	private void scheduleReceiveInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
+		privilege.interrupt.schedule(Stats.ConsoleTime, readDevice,
 				receiveInterrupt);
 	}
 
@@ -114,7 +117,7 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	private void scheduleSendInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
+		privilege.interrupt.schedule(Stats.ConsoleTime, writeDevice,
 				sendInterrupt);
 	}
 
@@ -149,6 +152,7 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	private Privilege privilege = null;
+	private int readDevice, writeDevice;
 
 	private Runnable receiveInterrupt;
 	private Runnable sendInterrupt;
@@ -92,4 +92,66 @@ public final class Stats {
 	 * The amount of simulated time required for an elevator to move a floor.
 	 */
 	public static final int ElevatorTicks = 2000;
+
+	/**
+	 * Runtime statistics kept by the kernel for one thread or process, as
+	 * opposed to the machine-wide statistics above.
+	 */
+	public static final class Account {
+		/**
+		 * Allocate a new account with every count zero.
+		 */
+		public Account() {
+		}
+
+		/**
+		 * Add every count in another account to this one.
+		 * 
+		 * @param other
+		 *            the account to add.
+		 */
+		public void add(Account other) {
+			runTicks += other.runTicks;
+			readyTicks += other.readyTicks;
+			blockedTicks += other.blockedTicks;
+			voluntarySwitches += other.voluntarySwitches;
+			preemptiveSwitches += other.preemptiveSwitches;
+			numSyscalls += other.numSyscalls;
+			numPageFaults += other.numPageFaults;
+			numTLBMisses += other.numTLBMisses;
+		}
+
+		/**
+		 * Print out the statistics in this account on one line.
+		 * 
+		 * @param name
+		 *            the name of the thread or process the account is for.
+		 */
+		public void print(String name) {
+			System.out.println(name + ": ticks run " + runTicks + ", ready "
+					+ readyTicks + ", blocked " + blockedTicks
+					+ "; switches " + (voluntarySwitches + preemptiveSwitches)
+					+ " (voluntary " + voluntarySwitches + ", preemptive "
+					+ preemptiveSwitches + "); syscalls " + numSyscalls
+					+ ", page faults " + numPageFaults + ", TLB misses "
+					+ numTLBMisses);
+		}
+
+		/** The simulated time spent running. */
+		public long runTicks = 0;
+		/** The simulated time spent waiting to run. */
+		public long readyTicks = 0;
+		/** The simulated time spent blocked. */
+		public long blockedTicks = 0;
+		/** The number of times the processor was given up by blocking or yielding. */
+		public int voluntarySwitches = 0;
+		/** The number of times the processor was taken away by the timer. */
+		public int preemptiveSwitches = 0;
+		/** The number of system calls made. */
+		public int numSyscalls = 0;
+		/** The number of page faults taken. */
+		public int numPageFaults = 0;
+		/** The number of TLB misses taken. */
+		public int numTLBMisses = 0;
+	}
 }
@@ -2,7 +2,9 @@
 
 package nachos.machine;
 
+import java.lang.reflect.Method;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 
 import nachos.security.Privilege;
 import nachos.threads.KThread;
@@ -18,6 +20,21 @@ import nachos.threads.KThread;
  * Nachos or have no useful effect.
  * 
  * <p>
+ * By default every TCB runs on a platform thread. Setting
+ * <tt>TCB.backend = virtual</tt> runs every TCB except the first on a JDK
+ * virtual thread instead (this needs a JVM that supports them). Virtual
+ * threads are cheap enough that up to <tt>TCB.maxVirtualThreads</tt> TCBs
+ * may run at once.
+ * 
+ * <p>
+ * On the platform backend, a context switch goes through each TCB's monitor
+ * with <tt>wait()</tt> and <tt>notify()</tt>. Setting
+ * <tt>TCB.handoff = park</tt> hands the CPU directly to the next TCB's Java
+ * thread with <tt>LockSupport.unpark()</tt> and parks the current one
+ * instead. Virtual threads always park, since a monitor wait would pin
+ * their carrier threads.
+ * 
+ * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
  */
@@ -39,6 +56,36 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String backend = Config.getString("TCB.backend", "platform");
+		if (backend.equals("virtual")) {
+			try {
+				Class<?> clsBuilder = Class.forName("java.lang.Thread$Builder");
+				virtualThreadBuilder = Thread.class.getMethod("ofVirtual")
+						.invoke(null);
+				unstarted = clsBuilder.getMethod("unstarted", Runnable.class);
+			} catch (Exception e) {
+				Lib.assertNotReached("virtual threads are not supported by this JVM");
+			}
+
+			virtualThreads = true;
+			threadLimit = Config.getInteger("TCB.maxVirtualThreads",
+					maxVirtualThreads);
+		} else {
+			Lib.assertTrue(backend.equals("platform"), "unknown TCB backend: "
+					+ backend);
+		}
+
+		String handoff = Config.getString("TCB.handoff",
+				virtualThreads ? "park" : "monitor");
+		if (handoff.equals("park")) {
+			parking = true;
+		} else {
+			Lib.assertTrue(handoff.equals("monitor"), "unknown TCB handoff: "
+					+ handoff);
+			Lib.assertTrue(!virtualThreads,
+					"virtual threads cannot hand off through monitors");
+		}
 	}
 
 	/**
@@ -68,7 +115,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +149,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newJavaThread(tcbTarget);
 				}
 			});
 
@@ -128,6 +175,21 @@ public final class TCB {
 		}
 	}
 
+	/**
+	 * Create the Java thread for a TCB using the configured backend.
+	 */
+	private static Thread newJavaThread(Runnable target) {
+		if (!virtualThreads)
+			return new Thread(target);
+
+		try {
+			return (Thread) unstarted.invoke(virtualThreadBuilder, target);
+		} catch (Exception e) {
+			Lib.assertNotReached("could not create virtual thread: " + e);
+			return null;
+		}
+	}
+
 	/**
 	 * Return the TCB of the currently running thread.
 	 */
@@ -286,14 +348,24 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Waits on the monitor bound to this TCB, or parks this TCB's Java
+	 * thread, until its <tt>running</tt> flag is set to <tt>true</tt>.
+	 * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+	 * for its turn to run. This includes the ping-pong process of starting
+	 * and destroying TCBs, as well as in context switching from this TCB to
+	 * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+	 * <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
+	private void waitForInterrupt() {
+		if (parking) {
+			while (!running)
+				LockSupport.park(this);
+		} else {
+			waitOnMonitor();
+		}
+	}
+
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -304,11 +376,22 @@ public final class TCB {
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * and signalling the monitor bound to it, or unparking its Java thread.
+	 * Used in the ping-pong process of starting and destroying TCBs, as well
+	 * as in context switching to this TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
+		if (parking) {
+			// latch the thread first, a destroyed TCB may clear it once woken
+			Thread thread = javaThread;
+			running = true;
+			LockSupport.unpark(thread);
+		} else {
+			notifyMonitor();
+		}
+	}
+
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
@@ -340,6 +423,20 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The default maximum number of started, non-destroyed TCB's when they
+	 * run on virtual threads.
+	 */
+	public static final int maxVirtualThreads = 65536;
+
+	/** <tt>true</tt> if TCBs other than the first run on virtual threads. */
+	private static boolean virtualThreads = false;
+	/** <tt>true</tt> if TCBs hand off the CPU by parking and unparking. */
+	private static boolean parking = false;
+	private static int threadLimit = maxThreads;
+	private static Object virtualThreadBuilder;
+	private static Method unstarted;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -396,7 +493,7 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
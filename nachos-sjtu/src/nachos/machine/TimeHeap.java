@@ -0,0 +1,202 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Arrays;
+
+/**
+ * A queue of values, each due at a time, that hands them out in order of
+ * time, and in the order they were added among equal times. Each value also
+ * carries an integer tag.
+ *
+ * <p>
+ * The queue is a binary min-heap spread over parallel arrays, so that adding
+ * and removing a value allocates nothing once the arrays have grown to the
+ * largest number of values held.
+ */
+public final class TimeHeap<T> {
+	/**
+	 * Allocate a new, empty queue.
+	 */
+	public TimeHeap() {
+	}
+
+	/**
+	 * Return the number of values in the queue.
+	 *
+	 * @return the number of values in the queue.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Tests whether the queue is empty.
+	 *
+	 * @return <tt>true</tt> if the queue holds no values.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Add a value to the queue, after any value due at the same time.
+	 *
+	 * @param time
+	 *            the time the value is due.
+	 * @param tag
+	 *            an integer kept with the value.
+	 * @param value
+	 *            the value.
+	 */
+	public void add(long time, int tag, T value) {
+		if (size == times.length) {
+			int capacity = size * 2;
+			times = Arrays.copyOf(times, capacity);
+			sequences = Arrays.copyOf(sequences, capacity);
+			tags = Arrays.copyOf(tags, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		siftUp(size++, time, numAdded++, tag, value);
+	}
+
+	/**
+	 * Return the time of the first value. The queue must not be empty.
+	 *
+	 * @return the earliest time in the queue.
+	 */
+	public long firstTime() {
+		Lib.assertTrue(size > 0);
+		return times[0];
+	}
+
+	/**
+	 * Return the tag of the first value. The queue must not be empty.
+	 *
+	 * @return the tag of the first value.
+	 */
+	public int firstTag() {
+		Lib.assertTrue(size > 0);
+		return tags[0];
+	}
+
+	/**
+	 * Return the first value. The queue must not be empty.
+	 *
+	 * @return the value due first.
+	 */
+	@SuppressWarnings("unchecked")
+	public T first() {
+		Lib.assertTrue(size > 0);
+		return (T) values[0];
+	}
+
+	/**
+	 * Remove the first value from the queue. The queue must not be empty.
+	 */
+	public void removeFirst() {
+		Lib.assertTrue(size > 0);
+
+		// move the last value into the vacated root
+		int last = --size;
+		if (last > 0)
+			siftDown(0, times[last], sequences[last], tags[last], values[last]);
+		values[last] = null;
+	}
+
+	/**
+	 * Return the time of the value in heap slot <i>slot</i>, for printing.
+	 */
+	long time(int slot) {
+		return times[slot];
+	}
+
+	/**
+	 * Return the tag of the value in heap slot <i>slot</i>, for printing.
+	 */
+	int tag(int slot) {
+		return tags[slot];
+	}
+
+	/**
+	 * Tests whether the value in heap slot <i>a</i> is due before the one in
+	 * slot <i>b</i>.
+	 */
+	boolean before(int a, int b) {
+		return before(times[a], sequences[a], b);
+	}
+
+	/**
+	 * Place a value at or above the heap slot <tt>i</tt>, moving later values
+	 * down to make room.
+	 */
+	private void siftUp(int i, long time, long sequence, int tag,
+			Object value) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!before(time, sequence, parent))
+				break;
+
+			move(parent, i);
+			i = parent;
+		}
+
+		set(i, time, sequence, tag, value);
+	}
+
+	/**
+	 * Place a value at or below the heap slot <tt>i</tt>, moving earlier
+	 * values up to make room.
+	 */
+	private void siftDown(int i, long time, long sequence, int tag,
+			Object value) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+
+			if (child + 1 < size
+					&& before(times[child + 1], sequences[child + 1], child))
+				child++;
+
+			if (!before(times[child], sequences[child], time, sequence))
+				break;
+
+			move(child, i);
+			i = child;
+		}
+
+		set(i, time, sequence, tag, value);
+	}
+
+	private boolean before(long time, long sequence, int slot) {
+		return before(time, sequence, times[slot], sequences[slot]);
+	}
+
+	private static boolean before(long time, long sequence, long otherTime,
+			long otherSequence) {
+		return time < otherTime
+				|| (time == otherTime && sequence < otherSequence);
+	}
+
+	private void move(int from, int to) {
+		set(to, times[from], sequences[from], tags[from], values[from]);
+	}
+
+	private void set(int slot, long time, long sequence, int tag,
+			Object value) {
+		times[slot] = time;
+		sequences[slot] = sequence;
+		tags[slot] = tag;
+		values[slot] = value;
+	}
+
+	private int size = 0;
+	private long numAdded = 0;
+	private long[] times = new long[16];
+	/** The order in which each value was added. */
+	private long[] sequences = new long[16];
+	private int[] tags = new int[16];
+	private Object[] values = new Object[16];
+}
@@ -13,6 +13,12 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is a
  * small degree of randomness here, so interrupts do not occur exactly every 500
  * ticks.
+ * 
+ * <p>
+ * The timer can also raise a wakeup interrupt at an exact time requested by
+ * the kernel, so that sleeping threads need not wait for the next timer
+ * interrupt. Only the earliest requested wakeup is armed; an interrupt left
+ * over from a wakeup that was armed earlier does nothing when it fires.
  */
 public final class Timer {
 	/**
@@ -26,6 +32,10 @@ public final class Timer {
 
 		this.privilege = privilege;
 
+		timerDevice = privilege.interrupt.registerDevice("timer");
+		autoGraderDevice = privilege.interrupt.registerDevice("timerAG");
+		wakeupDevice = privilege.interrupt.registerDevice("wakeup");
+
 		timerInterrupt = new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -39,6 +49,12 @@ public final class Timer {
 			}
 		};
 
+		wakeupInterrupt = new Runnable() {
+			public void run() {
+				wakeupInterrupt();
+			}
+		};
+
 		scheduleInterrupt();
 	}
 
@@ -53,6 +69,37 @@ public final class Timer {
 		this.handler = handler;
 	}
 
+	/**
+	 * Set the callback to use as a wakeup interrupt handler. The wakeup
+	 * interrupt handler will be called at the times requested with
+	 * <tt>scheduleWakeup()</tt>.
+	 * 
+	 * @param handler
+	 *            the wakeup interrupt handler.
+	 */
+	public void setWakeupHandler(Runnable handler) {
+		this.wakeupHandler = handler;
+	}
+
+	/**
+	 * Request a wakeup interrupt at the specified time, or on the next tick if
+	 * that time has already passed. Does nothing if a wakeup interrupt is
+	 * already armed at or before that time. After the wakeup handler has been
+	 * called, no wakeup is armed until the next request.
+	 * 
+	 * @param time
+	 *            the time at which the wakeup interrupt should occur.
+	 */
+	public void scheduleWakeup(long time) {
+		time = Math.max(time, getTime() + 1);
+		if (time >= wakeupTime)
+			return;
+
+		wakeupTime = time;
+		privilege.interrupt.schedule(time - getTime(), wakeupDevice,
+				wakeupInterrupt);
+	}
+
 	/**
 	 * Get the current time.
 	 * 
@@ -76,17 +123,32 @@ public final class Timer {
 		int delay = Stats.TimerTicks;
 		delay += Lib.random(delay / 10) - (delay / 20);
 
-		privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+		privilege.interrupt.schedule(delay, timerDevice, timerInterrupt);
 	}
 
 	private void scheduleAutoGraderInterrupt() {
-		privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+		privilege.interrupt.schedule(1, autoGraderDevice, autoGraderInterrupt);
+	}
+
+	private void wakeupInterrupt() {
+		// left over from a later wakeup that an earlier one replaced
+		if (getTime() < wakeupTime)
+			return;
+
+		wakeupTime = Long.MAX_VALUE;
+		if (wakeupHandler != null)
+			wakeupHandler.run();
 	}
 
 	private long lastTimerInterrupt;
+	private int timerDevice, autoGraderDevice, wakeupDevice;
 	private Runnable timerInterrupt;
 	private Runnable autoGraderInterrupt;
+	private Runnable wakeupInterrupt;
+	/** The time of the armed wakeup, or the largest long if none is. */
+	private long wakeupTime = Long.MAX_VALUE;
 
 	private Privilege privilege;
 	private Runnable handler = null;
+	private Runnable wakeupHandler = null;
 }
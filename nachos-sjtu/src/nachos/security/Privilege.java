@@ -155,6 +155,31 @@ public abstract class Privilege {
 		 */
 		public void schedule(long when, String type, Runnable handler);
 
+		/**
+		 * Register a type of interrupt and return the device ID to schedule
+		 * it with. Registering the same type twice returns the same ID.
+		 * 
+		 * @param type
+		 *            a name for the type of interrupt.
+		 * @return the device ID for this type of interrupt.
+		 */
+		public int registerDevice(String type);
+
+		/**
+		 * Schedule an interrupt to occur at some time in the future. This is
+		 * the same as <tt>schedule(long, String, Runnable)</tt>, but takes
+		 * the device ID returned by <tt>registerDevice()</tt> in place of the
+		 * type name.
+		 * 
+		 * @param when
+		 *            the number of ticks until the interrupt should occur.
+		 * @param device
+		 *            the device ID of the type of interrupt being scheduled.
+		 * @param handler
+		 *            the interrupt handler to call.
+		 */
+		public void schedule(long when, int device, Runnable handler);
+
 		/**
 		 * Advance the simulated time.
 		 * 
@@ -164,6 +189,23 @@ public abstract class Privilege {
 		 *            user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the time at which the earliest pending interrupt is due. No
+		 * interrupt handler can run before this time unless another interrupt
+		 * is scheduled first.
+		 * 
+		 * @return the time of the next pending interrupt, or
+		 *         <tt>Long.MAX_VALUE</tt> if there are none.
+		 */
+		public long nextPendingTime();
+
+		/**
+		 * Advance the simulated time the way an idle processor would, up to
+		 * the last kernel tick before the next pending interrupt, without
+		 * invoking any interrupt handlers.
+		 */
+		public void idle();
 	}
 
 	/**
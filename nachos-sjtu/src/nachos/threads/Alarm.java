@@ -2,11 +2,17 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.Iterator;
-import java.util.LinkedList;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ * 
+ * <p>
+ * Sleeping threads are kept in a min-heap ordered by wake time, and by the
+ * order in which they went to sleep among equal wake times. The timer is asked
+ * for a wakeup interrupt at the earliest wake time, so a thread is woken at
+ * exactly the time it asked for rather than at the next timer interrupt. The
+ * timer keeps only the earliest request, so the alarm asks again whenever the
+ * first wake time may have changed.
  */
 public class Alarm {
 	/**
@@ -22,36 +28,43 @@ public class Alarm {
 				timerInterrupt();
 			}
 		});
+		Machine.timer().setWakeupHandler(new Runnable() {
+			public void run() {
+				wakeupInterrupt();
+			}
+		});
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Unless the scheduler
+	 * decides otherwise, causes the current thread to yield, forcing a context
+	 * switch if there is another thread that should be run.
 	 */
 	public void timerInterrupt() {
 		boolean intStatus = Machine.interrupt().disable();
-		Iterator<KThread> i = waitQueue.iterator();
-		Iterator<Long> j = waitTime.iterator();
-		while (i.hasNext())
-		{
-			if (Machine.timer().getTime() >=j.next())
-			{
-				i.next().ready(); 
-				i.remove();
-				j.remove();
-			}
-			else i.next();
-		}
+		wakeSleepers();
+		boolean preempt = ThreadedKernel.scheduler.timerInterrupt();
+		Machine.interrupt().restore(intStatus);
+		if (preempt)
+			KThread.preempt();
+	}
+
+	/**
+	 * The wakeup interrupt handler, called by the machine's timer at the wake
+	 * time of the first sleeping thread. Wakes every thread whose time has
+	 * come, and asks for a wakeup interrupt for the next one.
+	 */
+	private void wakeupInterrupt() {
+		boolean intStatus = Machine.interrupt().disable();
+		wakeSleepers();
 		Machine.interrupt().restore(intStatus);
-		KThread.yield();
 	}
 
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
-	 * in the timer interrupt handler. The thread must be woken up (placed in
-	 * the scheduler ready set) during the first timer interrupt where
+	 * in the wakeup interrupt handler. The thread must be woken up (placed in
+	 * the scheduler ready set) at the first interrupt where
 	 * 
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
@@ -63,12 +76,41 @@ public class Alarm {
 	 */
 	public void waitUntil(long x) {
 		boolean intStatus = Machine.interrupt().disable();
-		waitQueue.add(KThread.currentThread());
-		waitTime.add(Machine.timer().getTime() + x);
+
+		sleepers.add(Machine.timer().getTime() + x, 0, KThread.currentThread());
+		arm();
+
 		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
 	}
-	
-	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
-	private LinkedList<Long> waitTime = new LinkedList<Long>(); 
+
+	/**
+	 * Ready every sleeping thread whose wake time has passed.
+	 */
+	private void wakeSleepers() {
+		long now = Machine.timer().getTime();
+
+		while (!sleepers.isEmpty() && sleepers.firstTime() <= now) {
+			KThread thread = sleepers.first();
+			sleepers.removeFirst();
+
+			thread.ready();
+		}
+
+		arm();
+	}
+
+	/**
+	 * Ask for a wakeup interrupt at the first wake time.
+	 */
+	private void arm() {
+		if (!sleepers.isEmpty())
+			Machine.timer().scheduleWakeup(sleepers.firstTime());
+	}
+
+	/**
+	 * The sleeping threads, by wake time, and by the order in which they went
+	 * to sleep among equal wake times.
+	 */
+	private TimeHeap<KThread> sleepers = new TimeHeap<KThread>();
 }
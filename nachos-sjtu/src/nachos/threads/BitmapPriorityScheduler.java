@@ -0,0 +1,183 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A priority scheduler whose queues pick the next thread in constant time.
+ *
+ * <p>
+ * Threads are chosen exactly as by <tt>PriorityScheduler</tt>, and priority
+ * is donated the same way. Instead of scanning every waiting thread, each
+ * queue keeps one FIFO list per priority level, ordered by arrival, and a
+ * bitmap of the levels that have waiting threads. The next thread is the
+ * head of the highest non-empty level, and the highest level is also the
+ * priority a queue donates to its holder, so the per-priority counts kept by
+ * <tt>PriorityQueue</tt> are not needed. When a waiting thread's effective
+ * priority changes, it is moved to its new level, keeping its place in
+ * arrival order.
+ */
+public class BitmapPriorityScheduler extends PriorityScheduler {
+	/**
+	 * Allocate a new bitmap priority scheduler.
+	 */
+	public BitmapPriorityScheduler() {
+	}
+
+	/**
+	 * Allocate a new bitmap priority thread queue.
+	 *
+	 * @param transferPriority
+	 *            <tt>true</tt> if this queue should transfer priority from
+	 *            waiting threads to the owning thread.
+	 * @return a new bitmap priority thread queue.
+	 */
+	@Override
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new BitmapQueue(transferPriority);
+	}
+
+	@Override
+	protected BitmapThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new BitmapThreadState(thread);
+
+		return (BitmapThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps a FIFO list for each priority level.
+	 */
+	protected class BitmapQueue extends PriorityQueue {
+		BitmapQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		@Override
+		protected BitmapThreadState pickNextThread() {
+			if (bitmap == 0)
+				return null;
+
+			return heads[donatedPriority()];
+		}
+
+		@Override
+		public void print() {
+			for (int level = priorityMaximum; level >= priorityMinimum; level--)
+				for (BitmapThreadState ts = heads[level]; ts != null; ts = ts.next)
+					System.out.println(ts.thread + ", " + ts.getPriority()
+							+ ", " + ts.getEffectivePriority());
+		}
+
+		@Override
+		public int donatedPriority() {
+			return 31 - Integer.numberOfLeadingZeros(bitmap);
+		}
+
+		@Override
+		protected void add(ThreadState ts) {
+			BitmapThreadState state = (BitmapThreadState) ts;
+			int oldMax = donatedPriority();
+
+			state.sequence = numWaits++;
+			link(state);
+
+			if (donatedPriority() != oldMax)
+				donationChanged();
+		}
+
+		@Override
+		protected void remove(ThreadState ts) {
+			int oldMax = donatedPriority();
+
+			unlink((BitmapThreadState) ts);
+
+			if (donatedPriority() != oldMax)
+				donationChanged();
+		}
+
+		@Override
+		protected void reprioritize(ThreadState ts, int oldPriority) {
+			BitmapThreadState state = (BitmapThreadState) ts;
+			int oldMax = donatedPriority();
+
+			unlink(state);
+			link(state);
+
+			if (donatedPriority() != oldMax)
+				donationChanged();
+		}
+
+		/**
+		 * Add a thread to the list for its effective priority, behind every
+		 * thread that arrived before it.
+		 */
+		private void link(BitmapThreadState ts) {
+			int level = ts.efcPriority;
+			Lib.assertTrue(level >= priorityMinimum && level <= priorityMaximum);
+
+			BitmapThreadState after = tails[level];
+			while (after != null && after.sequence > ts.sequence)
+				after = after.prev;
+
+			ts.level = level;
+			ts.prev = after;
+			if (after == null) {
+				ts.next = heads[level];
+				heads[level] = ts;
+			} else {
+				ts.next = after.next;
+				after.next = ts;
+			}
+
+			if (ts.next == null)
+				tails[level] = ts;
+			else
+				ts.next.prev = ts;
+
+			bitmap |= 1 << level;
+		}
+
+		private void unlink(BitmapThreadState ts) {
+			int level = ts.level;
+
+			if (ts.prev == null)
+				heads[level] = ts.next;
+			else
+				ts.prev.next = ts.next;
+
+			if (ts.next == null)
+				tails[level] = ts.prev;
+			else
+				ts.next.prev = ts.prev;
+
+			ts.prev = ts.next = null;
+
+			if (heads[level] == null)
+				bitmap &= ~(1 << level);
+		}
+
+		private BitmapThreadState[] heads = new BitmapThreadState[priorityMaximum + 1];
+		private BitmapThreadState[] tails = new BitmapThreadState[priorityMaximum + 1];
+		/** Bit <i>i</i> is set if a thread with priority <i>i</i> is waiting. */
+		private int bitmap = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread, including its place in the priority
+	 * list of the queue it is waiting on.
+	 */
+	protected class BitmapThreadState extends ThreadState {
+		public BitmapThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/** The order in which this thread started waiting on its queue. */
+		private long sequence;
+		/** The priority level this thread is listed under while waiting. */
+		private int level;
+		private BitmapThreadState prev, next;
+	}
+
+	private long numWaits = 0;
+}
@@ -0,0 +1,169 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+
+/**
+ * A <i>channel</i> allows threads to exchange 32-bit messages through a
+ * bounded buffer. Unlike a <tt>Communicator</tt>, a sender does not wait for a
+ * receiver: it only blocks while the buffer is full, and a receiver only
+ * blocks while it is empty. Words are received in the order they were sent.
+ *
+ * <p>
+ * Words can be moved in batches, with one lock acquisition and at most one
+ * wakeup for as many words as fit, so producer and consumer threads can pass
+ * many words per context switch.
+ */
+public class Channel {
+	/**
+	 * Allocate a new channel.
+	 *
+	 * @param capacity
+	 *            the number of words the channel can buffer.
+	 */
+	public Channel(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new int[capacity];
+		lock = new Lock();
+		notFull = new Condition2(lock);
+		notEmpty = new Condition2(lock);
+	}
+
+	/**
+	 * Send a single word, waiting while the buffer is full.
+	 *
+	 * @param word
+	 *            the integer to transfer.
+	 */
+	public void send(int word) {
+		lock.acquire();
+		waitForSpace();
+
+		buffer[(head + count) % buffer.length] = word;
+		count++;
+
+		wakeReceiver();
+		lock.release();
+	}
+
+	/**
+	 * Send every word in <i>words</i>, in order. Waits while the buffer is
+	 * full, so does not return until all the words are buffered or received.
+	 *
+	 * @param words
+	 *            the integers to transfer.
+	 */
+	public void send(int[] words) {
+		lock.acquire();
+
+		int sent = 0;
+		while (sent < words.length) {
+			waitForSpace();
+
+			int tail = (head + count) % buffer.length;
+			int n = Math.min(words.length - sent, buffer.length - count);
+			int first = Math.min(n, buffer.length - tail);
+			System.arraycopy(words, sent, buffer, tail, first);
+			System.arraycopy(words, sent + first, buffer, 0, n - first);
+			count += n;
+			sent += n;
+
+			wakeReceiver();
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Receive a single word, waiting while the buffer is empty.
+	 *
+	 * @return the integer transferred.
+	 */
+	public int receive() {
+		lock.acquire();
+		waitForWords();
+
+		int word = buffer[head];
+		head = (head + 1) % buffer.length;
+		count--;
+
+		wakeSender();
+		lock.release();
+		return word;
+	}
+
+	/**
+	 * Receive up to <i>n</i> words into the start of <i>words</i>. Waits
+	 * while the buffer is empty, then takes as many words as are buffered, up
+	 * to <i>n</i>.
+	 *
+	 * @param words
+	 *            the array to store the received integers in.
+	 * @param n
+	 *            the largest number of words to receive.
+	 * @return the number of words received, at least one.
+	 */
+	public int receive(int[] words, int n) {
+		Lib.assertTrue(n > 0 && n <= words.length);
+
+		lock.acquire();
+		waitForWords();
+
+		n = Math.min(n, count);
+		int first = Math.min(n, buffer.length - head);
+		System.arraycopy(buffer, head, words, 0, first);
+		System.arraycopy(buffer, 0, words, first, n - first);
+		head = (head + n) % buffer.length;
+		count -= n;
+
+		wakeSender();
+		lock.release();
+		return n;
+	}
+
+	private void waitForSpace() {
+		while (count == buffer.length) {
+			numSending++;
+			notFull.sleep();
+			numSending--;
+		}
+	}
+
+	private void waitForWords() {
+		while (count == 0) {
+			numReceiving++;
+			notEmpty.sleep();
+			numReceiving--;
+		}
+	}
+
+	/**
+	 * Wake a waiting receiver, which passes the wakeup on if it leaves words
+	 * behind.
+	 */
+	private void wakeReceiver() {
+		if (numReceiving > 0)
+			notEmpty.wake();
+	}
+
+	/**
+	 * Wake a waiting sender if there is space, and a waiting receiver if
+	 * there are still words, since only one of them was woken for them.
+	 */
+	private void wakeSender() {
+		if (numSending > 0)
+			notFull.wake();
+		if (count > 0)
+			wakeReceiver();
+	}
+
+	private int[] buffer;
+	/** The index of the oldest buffered word. */
+	private int head = 0;
+	/** The number of buffered words. */
+	private int count = 0;
+	private int numSending = 0, numReceiving = 0;
+
+	private Lock lock;
+	private Condition2 notFull, notEmpty;
+}
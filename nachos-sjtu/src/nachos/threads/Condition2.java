@@ -34,14 +34,21 @@ public class Condition2 {
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		conditionLock.release();
-		
+		long start = 0;
+		if (profile != null)
+			start = Machine.timer().getTime();
+
+		// release the lock and start waiting atomically, so no wake is lost
 		boolean intStatus = Machine.interrupt().disable();
+		conditionLock.release();
 		waitQueue.waitForAccess(KThread.currentThread());
 		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
 		
 		conditionLock.acquire();
+
+		if (profile != null)
+			profile.acquired(start, true);
 	}
 
 	/**
@@ -81,4 +88,6 @@ public class Condition2 {
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
 	private Lock conditionLock;
+	private ContentionProfile profile = ContentionProfile
+			.forCreator("condition");
 }
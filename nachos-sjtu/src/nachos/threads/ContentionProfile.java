@@ -0,0 +1,126 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import nachos.machine.*;
+
+/**
+ * Contention statistics for the locks, semaphores or condition variables
+ * created at one place in the kernel.
+ *
+ * <p>
+ * Profiling is enabled by setting <tt>ThreadedKernel.profileContention</tt>.
+ * Every <tt>Lock</tt>, <tt>Semaphore</tt> and <tt>Condition2</tt> then finds
+ * the profile for the line of code that created it, and records how often it
+ * was acquired, how often the acquiring thread had to wait, how long it
+ * waited in simulated ticks, and, for locks, how long the lock was held. The
+ * profiles are printed when the kernel terminates. When profiling is
+ * disabled, synchronization objects have no profile and record nothing.
+ */
+public class ContentionProfile {
+	private ContentionProfile(String kind, String site) {
+		this.kind = kind;
+		this.site = site;
+	}
+
+	/**
+	 * Return the profile for the caller's creation site, or <tt>null</tt> if
+	 * profiling is disabled.
+	 *
+	 * @param kind
+	 *            the kind of synchronization object being created.
+	 * @return the profile to record into.
+	 */
+	static ContentionProfile forCreator(String kind) {
+		if (!enabled)
+			return null;
+
+		String site = "(unknown)";
+		for (StackTraceElement frame : new Throwable().getStackTrace()) {
+			String className = frame.getClassName();
+			if (!className.equals(ContentionProfile.class.getName())
+					&& !className.equals(Lock.class.getName())
+					&& !className.equals(Semaphore.class.getName())
+					&& !className.equals(Condition2.class.getName())) {
+				site = frame.getFileName() + ":" + frame.getLineNumber();
+				break;
+			}
+		}
+
+		String key = kind + " " + site;
+		ContentionProfile profile = profiles.get(key);
+		if (profile == null) {
+			profile = new ContentionProfile(kind, site);
+			profiles.put(key, profile);
+		}
+		return profile;
+	}
+
+	/**
+	 * Record an acquisition that was asked for at time <tt>start</tt>.
+	 *
+	 * @param start
+	 *            the time at which the thread asked to acquire.
+	 * @param contended
+	 *            <tt>true</tt> if the thread had to wait.
+	 */
+	void acquired(long start, boolean contended) {
+		acquisitions++;
+		if (contended) {
+			long wait = Machine.timer().getTime() - start;
+			contentions++;
+			waitTicks += wait;
+			maxWaitTicks = Math.max(maxWaitTicks, wait);
+		}
+	}
+
+	/**
+	 * Record a release of something acquired at time <tt>acquired</tt>.
+	 */
+	void released(long acquired) {
+		long hold = Machine.timer().getTime() - acquired;
+		holdTicks += hold;
+		maxHoldTicks = Math.max(maxHoldTicks, hold);
+	}
+
+	/**
+	 * Print every profile, those with the most ticks spent waiting first.
+	 */
+	public static void print() {
+		if (!enabled)
+			return;
+
+		ArrayList<ContentionProfile> sorted = new ArrayList<ContentionProfile>(
+				profiles.values());
+		Collections.sort(sorted, new Comparator<ContentionProfile>() {
+			public int compare(ContentionProfile a, ContentionProfile b) {
+				if (a.waitTicks != b.waitTicks)
+					return a.waitTicks > b.waitTicks ? -1 : 1;
+				return (a.kind + a.site).compareTo(b.kind + b.site);
+			}
+		});
+
+		for (ContentionProfile profile : sorted) {
+			String line = "Contention: " + profile.kind + " " + profile.site
+					+ ": acquires " + profile.acquisitions + ", contended "
+					+ profile.contentions + ", wait " + profile.waitTicks
+					+ " (max " + profile.maxWaitTicks + ")";
+			if (profile.kind.equals("lock"))
+				line += ", hold " + profile.holdTicks + " (max "
+						+ profile.maxHoldTicks + ")";
+			System.out.println(line);
+		}
+	}
+
+	private String kind, site;
+	private long acquisitions = 0, contentions = 0;
+	private long waitTicks = 0, maxWaitTicks = 0;
+	private long holdTicks = 0, maxHoldTicks = 0;
+
+	private static final boolean enabled = Config.getBoolean(
+			"ThreadedKernel.profileContention", false);
+	private static HashMap<String, ContentionProfile> profiles = new HashMap<String, ContentionProfile>();
+}
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedHashSet;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -64,6 +66,8 @@ public class KThread {
 			readyQueue.acquire(this);
 
 			currentThread = this;
+			if (ThreadedKernel.accounting)
+				liveThreads.add(this);
 			tcb = TCB.currentTCB();
 			name = "main";
 			restoreState();
@@ -159,6 +163,9 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (ThreadedKernel.accounting)
+			liveThreads.add(this);
+
 		tcb.start(new Runnable() {
 			public void run() {
 				runThread();
@@ -248,6 +255,17 @@ public class KThread {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Relinquish the CPU because the current thread is being preempted, not
+	 * because it chose to. Same as <tt>yield()</tt>, except for how the
+	 * switch is counted in the thread's account.
+	 */
+	static void preempt() {
+		currentThread.preempted = true;
+		KThread.yield();
+		currentThread.preempted = false;
+	}
+
 	/**
 	 * Relinquish the CPU, because the current thread has either finished or it
 	 * is blocked. This thread must be the current thread.
@@ -264,6 +282,8 @@ public class KThread {
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
+		if (ThreadedKernel.accounting)
+			currentThread.chargeState();
 		if (currentThread.status != statusFinished)
 			currentThread.status = statusBlocked;
 
@@ -281,9 +301,13 @@ public class KThread {
 		
 		Lib.assertTrue(status != statusReady);
 
+		if (ThreadedKernel.accounting)
+			chargeState();
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			readyCount++;
+		}
 		//if (this == idleThread)
 			//System.out.println("!@#");
 		Machine.autoGrader().readyThread(this);
@@ -315,14 +339,27 @@ public class KThread {
 	 * 
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 * 
+	 * <p>
+	 * If <tt>ThreadedKernel.ticklessIdle</tt> is set, the idle thread does not
+	 * spin through one kernel tick per <tt>yield()</tt> while nothing is
+	 * ready, but lets the interrupt controller skip ahead to the tick at which
+	 * the next interrupt is due.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
+		final boolean tickless = Config.getBoolean(
+				"ThreadedKernel.ticklessIdle", false);
+
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					if (tickless && readyCount == 0)
+						Machine.autoGrader().idle();
+
 					yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -340,6 +377,8 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			readyCount--;
 
 		nextThread.run();
 	}
@@ -369,6 +408,13 @@ public class KThread {
 
 		Machine.yield();
 
+		if (this != currentThread) {
+			if (currentThread.status == statusReady && currentThread.preempted)
+				currentThread.account.preemptiveSwitches++;
+			else
+				currentThread.account.voluntarySwitches++;
+		}
+
 		currentThread.saveState();
 
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
@@ -394,11 +440,17 @@ public class KThread {
 
 		Machine.autoGrader().runningThread(this);
 
+		if (ThreadedKernel.accounting)
+			chargeState();
 		status = statusRunning;
 
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
 			toBeDestroyed.tcb = null;
+			if (liveThreads.remove(toBeDestroyed)) {
+				finishedAccount.add(toBeDestroyed.account);
+				finishedThreads++;
+			}
 			toBeDestroyed = null;
 		}
 	}
@@ -412,6 +464,41 @@ public class KThread {
 		Lib.assertTrue(this == currentThread);
 	}
 
+	/**
+	 * Charge the time since this thread last changed state to the state it is
+	 * in now. Called just before the state changes, if
+	 * <tt>ThreadedKernel.accounting</tt> is set.
+	 */
+	private void chargeState() {
+		long now = Machine.timer().getTime();
+
+		if (status == statusRunning)
+			account.runTicks += now - stateSince;
+		else if (status == statusReady)
+			account.readyTicks += now - stateSince;
+		else if (status == statusBlocked)
+			account.blockedTicks += now - stateSince;
+
+		stateSince = now;
+	}
+
+	/**
+	 * Print the account of every thread that has been forked and not yet
+	 * destroyed, charging the current thread for its time so far, and the
+	 * total of the accounts of the threads that have been destroyed.
+	 */
+	static void printAccounts() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		currentThread.chargeState();
+		for (KThread thread : liveThreads)
+			thread.account.print(thread.toString());
+		if (finishedThreads > 0)
+			finishedAccount.print("finished threads (" + finishedThreads + ")");
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(int which) {
 			this.which = which;
@@ -465,6 +552,12 @@ public class KThread {
 	
 	public ThreadQueue joinQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
+	/** Scheduling statistics for this thread. */
+	public Stats.Account account = new Stats.Account();
+	/** The time at which this thread entered its current state. */
+	private long stateSince = Machine.timer().getTime();
+	/** <tt>true</tt> while this thread yields because it was preempted. */
+	private boolean preempted = false;
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
 	 * threads.
@@ -474,8 +567,18 @@ public class KThread {
 	private static int numCreated = 0;
 
 	public static ThreadQueue readyQueue = null;
+	/** Number of threads waiting in <tt>readyQueue</tt>. */
+	private static int readyCount = 0;
 	private static KThread currentThread = null;
 	private static KThread toBeDestroyed = null;
 	public static KThread idleThread = null;
+	/**
+	 * Every thread forked and not yet destroyed, if
+	 * <tt>ThreadedKernel.accounting</tt> is set. The accounts of destroyed
+	 * threads are added into <tt>finishedAccount</tt>.
+	 */
+	private static LinkedHashSet<KThread> liveThreads = new LinkedHashSet<KThread>();
+	private static Stats.Account finishedAccount = new Stats.Account();
+	private static int finishedThreads = 0;
 	
 }
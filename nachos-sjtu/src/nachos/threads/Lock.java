@@ -35,7 +35,12 @@ public class Lock {
 		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = KThread.currentThread();
 
-		if (lockHolder != null) {
+		long start = 0;
+		if (profile != null)
+			start = Machine.timer().getTime();
+		boolean contended = lockHolder != null;
+
+		if (contended) {
 			waitQueue.waitForAccess(thread);
 			KThread.sleep();
 		} else {
@@ -45,6 +50,11 @@ public class Lock {
 
 		Lib.assertTrue(lockHolder == thread);
 
+		if (profile != null) {
+			profile.acquired(start, contended);
+			acquireTime = Machine.timer().getTime();
+		}
+
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -56,6 +66,9 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (profile != null)
+			profile.released(acquireTime);
+
 		if ((lockHolder = waitQueue.nextThread()) != null)
 			lockHolder.ready();
 
@@ -72,6 +85,8 @@ public class Lock {
 	}
 
 	private KThread lockHolder = null;
+	private ContentionProfile profile = ContentionProfile.forCreator("lock");
+	private long acquireTime;
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
 }
@@ -1,7 +1,5 @@
 package nachos.threads;
 
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Random;
 
 import nachos.machine.Lib;
@@ -128,37 +126,56 @@ public class LotteryScheduler extends PriorityScheduler {
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * A <tt>ThreadQueue</tt> that keeps the total number of tickets held by
+	 * its waiting threads, which is what it donates to its holder. Subclasses
+	 * decide which waiting thread goes next, and must keep the total up to
+	 * date as threads are added, removed and given new numbers of tickets.
 	 */
-	
-	
-	protected class LotteryQueue extends PriorityScheduler.PriorityQueue {
-		public LotteryQueue(boolean trans)
-		{
+	protected abstract class TicketQueue extends PriorityQueue {
+		public TicketQueue(boolean trans) {
 			super(trans);
 		}
+
+		/**
+		 * Return the total number of tickets held by the waiting threads,
+		 * limited to the largest <tt>int</tt>.
+		 */
 		@Override
-		public KThread nextThread() {
-			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			ThreadS ts;
-			if (holder != null)
-			{
-				holder.holdList.remove(this);
-			}
-			if ((ts = pickNextThread()) != null)
-			{
-				ts.acquire(this);
-				queue.remove(ts);
-				return ts.thread;
-			}
-			else
-			{
-				holder = null;
-				return null;
-			}
+		public int donatedPriority() {
+			return (int) Math.min(totalTickets, Integer.MAX_VALUE);
+		}
+
+		@Override
+		protected void reprioritize(ThreadState ts, int oldPriority) {
+			Lib.assertNotReached("lottery queues are told of ticket changes");
+		}
+
+		/**
+		 * Called when the tickets of <tt>ts</tt>, which is waiting on this
+		 * queue, have changed from <tt>oldTickets</tt>.
+		 */
+		protected abstract void retickets(ThreadS ts, long oldTickets);
+
+		/** The total number of tickets held by the waiting threads. */
+		protected long totalTickets = 0;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * Every waiting thread takes a slot in a Fenwick tree of ticket counts, so
+	 * a thread can be added, removed or given a new number of tickets, and the
+	 * winner of a draw found, in time logarithmic in the number of waiting
+	 * threads. The total number of waiting tickets, which is what the queue
+	 * donates to its holder, is kept up to date as the counts change.
+	 */
+	protected class LotteryQueue extends TicketQueue {
+		public LotteryQueue(boolean trans)
+		{
+			super(trans);
 		}
-			
+
 		/**
 		 * Return the next thread that <tt>nextThread()</tt> would return,
 		 * without modifying the state of this queue.
@@ -166,28 +183,111 @@ public class LotteryScheduler extends PriorityScheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		@Override
-		protected ThreadS pickNextThread() {	
-			int priorityTot = 0;
-			for (Iterator<ThreadState> it = queue.iterator(); it.hasNext();)
-			{
-				ThreadState ts = it.next();
-				priorityTot += ts.getEffectivePriority();
-				//Lib.debug('p', ts.thread.getName() + " priority " + ts.priority + "efcPriority" + ts.efcPriority);
+		protected ThreadS pickNextThread() {
+			if (totalTickets == 0)
+				return null;
+
+			long c;
+			if (totalTickets <= Integer.MAX_VALUE)
+				c = ranNum.nextInt((int) totalTickets);
+			else
+				c = Math.min((long) (ranNum.nextDouble() * totalTickets),
+						totalTickets - 1);
+
+			// descend the tree to the first slot whose running total exceeds c
+			int pos = 0;
+			for (int step = capacity; step > 0; step >>= 1) {
+				if (pos + step <= capacity && tree[pos + step] <= c) {
+					pos += step;
+					c -= tree[pos];
+				}
 			}
-			if (priorityTot == 0) return null;
-			int c = ranNum.nextInt(priorityTot);
-			for (Iterator<ThreadState> it = queue.iterator(); it.hasNext();)
-			{
-				ThreadState ts = it.next();
-				if (c < ts.getEffectivePriority())
-					return (ThreadS)ts;
-				else c -= ts.getEffectivePriority();
-				//Lib.debug('p', ts.thread.getName() + " priority " + ts.priority + "efcPriority" + ts.efcPriority);
+			return slots[pos + 1];
+		}
+
+		@Override
+		public void print() {
+			for (int i = 1; i <= capacity; i++)
+				if (slots[i] != null)
+					System.out.println(slots[i].thread + ", "
+							+ slots[i].getPriority() + ", "
+							+ slots[i].getEffectivePriority());
+		}
+
+		@Override
+		protected void add(ThreadState ts) {
+			ThreadS state = (ThreadS) ts;
+
+			if (numFree == 0)
+				grow();
+			state.slot = freeSlots[--numFree];
+			slots[state.slot] = state;
+
+			changeTickets(state.slot, state.tickets);
+		}
+
+		@Override
+		protected void remove(ThreadState ts) {
+			ThreadS state = (ThreadS) ts;
+
+			slots[state.slot] = null;
+			freeSlots[numFree++] = state.slot;
+
+			changeTickets(state.slot, -state.tickets);
+		}
+
+		@Override
+		protected void retickets(ThreadS ts, long oldTickets) {
+			changeTickets(ts.slot, ts.tickets - oldTickets);
+		}
+
+		private void changeTickets(int slot, long delta) {
+			for (int i = slot; i <= capacity; i += i & -i)
+				tree[i] += delta;
+
+			totalTickets += delta;
+			donationChanged();
+		}
+
+		/**
+		 * Double the number of slots, and rebuild the tree over them.
+		 */
+		private void grow() {
+			int newCapacity = capacity * 2;
+
+			ThreadS[] newSlots = new ThreadS[newCapacity + 1];
+			System.arraycopy(slots, 1, newSlots, 1, capacity);
+
+			long[] newTree = new long[newCapacity + 1];
+			for (int i = 1; i <= newCapacity; i++) {
+				if (newSlots[i] != null)
+					newTree[i] += newSlots[i].tickets;
+				int parent = i + (i & -i);
+				if (parent <= newCapacity)
+					newTree[parent] += newTree[i];
 			}
-			//Lib.debug('p', "\n");
-			return null;
+
+			// hand out the lowest new slots first
+			int[] newFree = new int[newCapacity];
+			for (int i = newCapacity; i > capacity; i--)
+				newFree[numFree++] = i;
+
+			slots = newSlots;
+			tree = newTree;
+			freeSlots = newFree;
+			capacity = newCapacity;
 		}
-		protected Random ranNum = new Random();  
+
+		protected Random ranNum = new Random();
+
+		/** The number of slots, always a power of two. */
+		private int capacity = 1;
+		/** The waiting thread in each slot, from 1 to <tt>capacity</tt>. */
+		private ThreadS[] slots = new ThreadS[2];
+		/** Fenwick tree over the tickets of the thread in each slot. */
+		private long[] tree = new long[2];
+		private int[] freeSlots = { 1 };
+		private int numFree = 1;
 	}
 
 	/**
@@ -195,47 +295,46 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The effective number of tickets is the thread's own tickets plus the
+	 * tickets waiting on every queue it holds that transfers priority. It is
+	 * recomputed from the cached totals of those queues whenever one of them
+	 * changes, and passed on to the queue the thread waits on.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadS extends PriorityScheduler.ThreadState {
 		public ThreadS(KThread thread) {
 			super(thread);
 		}
-		@Override
-		public void setPriority(int priority) {
-			this.priority = priority;
-		}
 
 		@Override
-		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
-			boolean intStatus = Machine.interrupt().disable();
-			waitQueue.queue.add(this);
-			belong = waitQueue;
-			Machine.interrupt().setStatus(intStatus);
-		}
-		@Override
-		public void acquire(PriorityQueue waitQueue) {
-			// implement me
-			boolean intStatus = Machine.interrupt().disable();
-			waitQueue.holder = this;
-			holdList.add(waitQueue);
-			belong = null;
-			Machine.interrupt().setStatus(intStatus);
+		public int getEffectivePriority()
+		{
+			return (int) Math.min(tickets, Integer.MAX_VALUE);
 		}
+
 		@Override
-		public int getEffectivePriority()
+		public void updateEffectivePriority()
 		{
-			int ans = priority;
-			//if (this.thread.status == KThread.statusRunning)
-				//return ans;
-			for (PriorityQueue pq : holdList)
-				if (pq.transferPriority)
-				for (ThreadState s: pq.queue)
-					ans += ((ThreadS)s).getEffectivePriority();
-			return ans;
+			long t = priority;
+			for (PriorityQueue waitQueue: holdList)
+				if (waitQueue.transferPriority)
+					t += ((TicketQueue) waitQueue).totalTickets;
+
+			if (t != tickets)
+			{
+				long oldTickets = tickets;
+				tickets = t;
+				if (belong != null)
+					((TicketQueue) belong).retickets(this, oldTickets);
+			}
 		}
 
+		/** The effective number of tickets of the associated thread. */
+		protected long tickets;
+		/** The slot this thread takes in the queue it is waiting on. */
+		private int slot;
 	}
 	static protected int debugCount = 0; 
 }
@@ -0,0 +1,272 @@
+package nachos.threads;
+
+import java.util.LinkedList;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Stats;
+
+/**
+ * A multi-level feedback queue scheduler. Every thread is on one of a number
+ * of levels, level 0 being the highest, and every queue gives access to the
+ * thread on the highest level first, first-come first-serve within a level.
+ *
+ * <p>
+ * The scheduler keeps track of how many ticks each thread has run and how
+ * many it has waited on the ready queue. A thread may run for a quantum that
+ * doubles with each level, starting from <tt>MLFQScheduler.quantum</tt>
+ * ticks. The quantum is checked on each timer interrupt: a thread that has
+ * used up its quantum is moved down a level and made to yield. Otherwise it
+ * only yields if a thread on a higher level is ready. A thread that blocks
+ * before its quantum is used up, by waiting on any queue other than the ready
+ * queue, is moved up a level. Every <tt>MLFQScheduler.boostInterval</tt>
+ * ticks, all threads are moved back to level 0, so threads that run for long
+ * stretches are not starved by a steady stream of short ones.
+ *
+ * <p>
+ * Threads have no priority, so none is transferred.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler() {
+		levels = Config.getInteger("MLFQScheduler.levels", 4);
+		quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+				40 * Stats.TimerTicks);
+		Lib.assertTrue(levels > 0 && levels < 32, "invalid number of levels");
+		Lib.assertTrue(quantum > 0 && boostInterval > 0);
+
+		nextBoost = boostInterval;
+	}
+
+	/**
+	 * Allocate a new multi-level thread queue.
+	 *
+	 * @param transferPriority
+	 *            ignored. MLFQ schedulers have no priority.
+	 * @return a new multi-level thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new LevelQueue();
+	}
+
+	/**
+	 * Return the level of the specified thread.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return getThreadState(thread).level();
+	}
+
+	/**
+	 * Return the number of ticks the specified thread has run for, as of the
+	 * last timer interrupt or context switch.
+	 */
+	public long getRunTicks(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return getThreadState(thread).runTicks;
+	}
+
+	/**
+	 * Return the number of ticks the specified thread has spent waiting on
+	 * the ready queue before being run.
+	 */
+	public long getWaitTicks(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return getThreadState(thread).waitTicks;
+	}
+
+	/**
+	 * Charge the running thread for the ticks since it was last charged, and
+	 * decide whether it has to yield.
+	 */
+	public boolean timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long now = Machine.timer().getTime();
+		if (now >= nextBoost) {
+			boosts++;
+			nextBoost = now + boostInterval;
+		}
+
+		ThreadState ts = getThreadState(KThread.currentThread());
+		if (ts != running)
+			return true;
+
+		ts.charge(now);
+		if (ts.used >= quantum << ts.level()) {
+			ts.setLevel(Math.min(ts.level() + 1, levels - 1));
+			return true;
+		}
+
+		return ((LevelQueue) KThread.readyQueue).highestLevel() < ts.level();
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with a FIFO list for each level.
+	 */
+	protected class LevelQueue extends ThreadQueue {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		LevelQueue() {
+			lists = new LinkedList[levels];
+			for (int i = 0; i < levels; i++)
+				lists[i] = new LinkedList<ThreadState>();
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState ts = getThreadState(thread);
+			if (this == KThread.readyQueue)
+				ts.since = Machine.timer().getTime();
+			else if (thread == KThread.currentThread())
+				ts.setLevel(Math.max(ts.level() - 1, 0));
+
+			boost();
+			lists[ts.level()].add(ts);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			int level = highestLevel();
+			ThreadState ts = level < levels ? lists[level].removeFirst() : null;
+
+			if (this == KThread.readyQueue) {
+				long now = Machine.timer().getTime();
+				if (running != null)
+					running.charge(now);
+
+				running = ts;
+				if (ts != null) {
+					ts.waitTicks += now - ts.since;
+					ts.since = now;
+				}
+			}
+
+			return ts == null ? null : ts.thread;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Nothing needs to
+		 * be done.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			boost();
+			for (int i = 0; i < levels; i++)
+				for (ThreadState ts : lists[i])
+					System.out.print(ts.thread + " (" + i + ") ");
+		}
+
+		/**
+		 * Return the highest level with a waiting thread, or the number of
+		 * levels if no thread is waiting.
+		 */
+		int highestLevel() {
+			boost();
+
+			int level = 0;
+			while (level < levels && lists[level].isEmpty())
+				level++;
+			return level;
+		}
+
+		/**
+		 * If threads were boosted since this queue last looked, move every
+		 * waiting thread to level 0, keeping the higher levels in front.
+		 */
+		private void boost() {
+			if (boosted == boosts)
+				return;
+
+			boosted = boosts;
+			for (int i = 1; i < levels; i++) {
+				lists[0].addAll(lists[i]);
+				lists[i].clear();
+			}
+		}
+
+		private LinkedList<ThreadState>[] lists;
+		private long boosted = boosts;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and how long it has run
+	 * and waited.
+	 */
+	protected class ThreadState {
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Return the level of the associated thread, moving it to level 0 if
+		 * threads were boosted since it last looked.
+		 */
+		int level() {
+			if (boosted != boosts) {
+				boosted = boosts;
+				setLevel(0);
+			}
+			return level;
+		}
+
+		void setLevel(int level) {
+			this.level = level;
+			used = 0;
+		}
+
+		/**
+		 * Charge the associated thread for running from <tt>since</tt> to
+		 * <tt>now</tt>.
+		 */
+		void charge(long now) {
+			runTicks += now - since;
+			used += now - since;
+			since = now;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+		private int level = 0;
+		/** The ticks run at the current level. */
+		private long used = 0;
+		/** When the thread last started running or waiting to run. */
+		private long since = 0;
+		private long runTicks = 0, waitTicks = 0;
+		private long boosted = boosts;
+	}
+
+	private int levels;
+	private int quantum;
+	private int boostInterval;
+	private long nextBoost;
+	/** The number of times all threads were moved back to level 0. */
+	private long boosts = 0;
+	/** The thread the ready queue last gave the processor to. */
+	private ThreadState running = null;
+}
@@ -25,6 +25,13 @@ import nachos.machine.Machine;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ * 
+ * <p>
+ * Donation is maintained incrementally. Each queue counts its waiting threads
+ * by effective priority and so knows the highest priority it donates to its
+ * holder. A thread's effective priority is only recomputed when the donation
+ * of a queue it holds changes, and a change is only passed on to the holder
+ * of the queue the thread waits on if it changes that queue's donation.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -157,18 +164,18 @@ public class PriorityScheduler extends Scheduler {
 			ThreadState ts;
 			if (holder != null)
 			{
-				holder.holdList.remove(this);
-				holder.reCalEffectivePriority();
+				ThreadState oldHolder = holder;
+				holder = null;
+				oldHolder.holdList.remove(this);
+				oldHolder.updateEffectivePriority();
 			}
 			if ((ts = pickNextThread()) != null)
 			{
 				ts.acquire(this);
-				queue.remove(ts);
 				return ts.thread;
 			}
 			else
 			{
-				holder = null;
 				return null;
 			}
 		}
@@ -204,6 +211,66 @@ public class PriorityScheduler extends Scheduler {
 			}
 		}
 
+		/**
+		 * Return the highest effective priority of any thread waiting on this
+		 * queue. This is the priority the queue donates to its holder if it
+		 * transfers priority.
+		 * 
+		 * @return the highest effective priority of a waiting thread, or -1
+		 *         if no thread is waiting.
+		 */
+		public int donatedPriority() {
+			return maxWaiting;
+		}
+
+		/**
+		 * Called when <tt>ts</tt> starts waiting on this queue.
+		 */
+		protected void add(ThreadState ts) {
+			queue.add(ts);
+			countWaiting(ts.efcPriority, 1);
+		}
+
+		/**
+		 * Called when <tt>ts</tt> stops waiting on this queue.
+		 */
+		protected void remove(ThreadState ts) {
+			queue.remove(ts);
+			countWaiting(ts.efcPriority, -1);
+		}
+
+		/**
+		 * Called when the effective priority of <tt>ts</tt>, which is waiting
+		 * on this queue, has changed from <tt>oldPriority</tt>.
+		 */
+		protected void reprioritize(ThreadState ts, int oldPriority) {
+			countWaiting(oldPriority, -1);
+			countWaiting(ts.efcPriority, 1);
+		}
+
+		private void countWaiting(int priority, int delta) {
+			int oldMax = maxWaiting;
+
+			numWaiting[priority] += delta;
+			if (priority > maxWaiting && delta > 0) {
+				maxWaiting = priority;
+			} else if (priority == maxWaiting && numWaiting[priority] == 0) {
+				while (maxWaiting >= 0 && numWaiting[maxWaiting] == 0)
+					maxWaiting--;
+			}
+
+			if (maxWaiting != oldMax)
+				donationChanged();
+		}
+
+		/**
+		 * Called when the priority this queue donates has changed.
+		 */
+		protected void donationChanged() {
+			if (transferPriority && holder != null)
+				holder.updateEffectivePriority();
+		}
+
 		/**
 		 * <tt>true</tt> if this queue should transfer priority from waiting
 		 * threads to the owning thread.
@@ -211,6 +278,9 @@ public class PriorityScheduler extends Scheduler {
 		public boolean transferPriority;
 		protected ThreadState holder = null;
 		protected LinkedList<ThreadState> queue = new LinkedList<ThreadState>(); 
+		/** The number of waiting threads at each effective priority. */
+		private int[] numWaiting = new int[priorityMaximum + 1];
+		private int maxWaiting = -1;
 	}
 
 	/**
@@ -253,28 +323,27 @@ public class PriorityScheduler extends Scheduler {
 			return efcPriority;
 		}
 		
-		public void updateEffectivePriority(int p)
+		/**
+		 * Recompute the effective priority from the priority of the
+		 * associated thread and the donations of the queues it holds. If it
+		 * changed, tell the queue the thread is waiting on, which passes the
+		 * change on to its holder if its own donation changes.
+		 */
+		public void updateEffectivePriority()
 		{
-			if (p > efcPriority)
+			int p = priority;
+			for (PriorityQueue waitQueue: holdList)
+				if (waitQueue.transferPriority)
+					p = Math.max(p, waitQueue.donatedPriority());
+
+			if (p != efcPriority)
 			{
+				int oldefc = efcPriority;
 				efcPriority = p;
-				if (belong != null && belong.holder != null)
-					belong.holder.updateEffectivePriority(p);
+				if (belong != null)
+					belong.reprioritize(this, oldefc);
 			}
 		}
-		
-		public int reCalEffectivePriority()
-		{
-			int oldefc = efcPriority;
-			efcPriority = priority;
-			for (PriorityQueue waitQueue: holdList)
-			if (waitQueue.transferPriority)
-				for (Iterator<ThreadState> it = waitQueue.queue.iterator(); it.hasNext();)
-					efcPriority = Math.max(efcPriority, it.next().getEffectivePriority());
-			if (oldefc != efcPriority && belong != null && belong.holder != null)
-				belong.holder.reCalEffectivePriority();
-			return efcPriority;
-		}
 
 		/**
 		 * Set the priority of the associated thread to the specified value.
@@ -285,12 +354,8 @@ public class PriorityScheduler extends Scheduler {
 		public void setPriority(int priority) {
 			if (this.priority == priority)
 				return;
-			int oldPriority = this.priority;
 			this.priority = priority;
-			if (oldPriority == efcPriority)
-				reCalEffectivePriority();
-			else if (priority > oldPriority)
-				updateEffectivePriority(priority);
+			updateEffectivePriority();
 			// implement me
 		}
 
@@ -309,11 +374,11 @@ public class PriorityScheduler extends Scheduler {
 		public void waitForAccess(PriorityQueue waitQueue) {
 			// implement me
 			boolean intStatus = Machine.interrupt().disable();
-			waitQueue.queue.add(this);
+			if (belong != null)
+				belong.remove(this);
 			belong = waitQueue;
 			enterTime = Machine.timer().getTime();
-			if (belong.holder != null)
-				belong.holder.updateEffectivePriority(efcPriority);
+			waitQueue.add(this);
 			Machine.interrupt().setStatus(intStatus);
 		}
 
@@ -330,10 +395,14 @@ public class PriorityScheduler extends Scheduler {
 		public void acquire(PriorityQueue waitQueue) {
 			// implement me
 			boolean intStatus = Machine.interrupt().disable();
+			if (belong != null)
+			{
+				belong.remove(this);
+				belong = null;
+			}
 			waitQueue.holder = this;
 			holdList.add(waitQueue);
-			belong = null;
-			reCalEffectivePriority();
+			updateEffectivePriority();
 			Machine.interrupt().setStatus(intStatus);
 		}
 
@@ -157,4 +157,16 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by the alarm on every timer interrupt, with interrupts disabled,
+	 * to decide whether the current thread should yield the processor. The
+	 * default is to always yield, so every thread gets a quantum of one timer
+	 * interrupt.
+	 * 
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean timerInterrupt() {
+		return true;
+	}
 }
@@ -38,13 +38,21 @@ public class Semaphore {
 	public void P() {
 		boolean intStatus = Machine.interrupt().disable();
 
-		if (value == 0) {
+		long start = 0;
+		if (profile != null)
+			start = Machine.timer().getTime();
+		boolean contended = value == 0;
+
+		if (contended) {
 			waitQueue.waitForAccess(KThread.currentThread());
 			KThread.sleep();
 		} else {
 			value--;
 		}
 
+		if (profile != null)
+			profile.acquired(start, contended);
+
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -98,6 +106,8 @@ public class Semaphore {
 	}
 
 	private int value;
+	private ContentionProfile profile = ContentionProfile
+			.forCreator("semaphore");
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
 }
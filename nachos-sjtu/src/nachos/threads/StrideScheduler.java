@@ -0,0 +1,273 @@
+package nachos.threads;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Stats;
+
+/**
+ * A scheduler that shares the processor in proportion to tickets, without
+ * the randomness of a lottery.
+ *
+ * <p>
+ * Threads hold tickets, and transfer them through queues exactly as with
+ * <tt>LotteryScheduler</tt>. Each thread has a stride, inversely
+ * proportional to its effective number of tickets, and a pass value. A queue
+ * always gives access to the waiting thread with the lowest pass, breaking
+ * ties by arrival, and keeps its waiting threads in a heap ordered that way.
+ *
+ * <p>
+ * Each queue also keeps a pass of its own, the pass of the thread it last
+ * chose. A thread that starts waiting is given that pass plus what it is
+ * charged, so a thread that is chosen again and again advances each time,
+ * while a thread that has been away does not come back with credit for the
+ * time it was away. On the ready queue a thread is charged a stride for each
+ * <tt>StrideScheduler.quantum</tt> ticks it ran since the ready queue last
+ * chose it, so a thread that blocks early keeps the rest of its stride;
+ * anywhere else it is charged a whole stride. If the tickets of a waiting
+ * thread change, the part of its stride still left is scaled to the new
+ * stride.
+ */
+public class StrideScheduler extends LotteryScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+		quantum = Config.getInteger("StrideScheduler.quantum", Stats.TimerTicks);
+		Lib.assertTrue(quantum > 0, "invalid StrideScheduler.quantum");
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority
+	 *            <tt>true</tt> if this queue should transfer tickets from
+	 *            waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	@Override
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	@Override
+	protected StrideThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new StrideThreadState(thread);
+
+		return (StrideThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * The stride of a thread with a single ticket.
+	 */
+	public static final long stride1 = 1L << 32;
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps its waiting threads in a heap ordered
+	 * by pass.
+	 */
+	protected class StrideQueue extends TicketQueue {
+		StrideQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		@Override
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			StrideThreadState ts = pickNextThread();
+			if (ts != null)
+				pass = ts.pass;
+
+			if (this == KThread.readyQueue) {
+				long now = Machine.timer().getTime();
+				if (running != null)
+					running.charge(now);
+
+				running = ts;
+				if (ts != null) {
+					ts.chosen = true;
+					ts.used = 0;
+					ts.since = now;
+				}
+			}
+
+			return super.nextThread();
+		}
+
+		@Override
+		protected StrideThreadState pickNextThread() {
+			if (size == 0)
+				return null;
+
+			return heap[0];
+		}
+
+		@Override
+		public void print() {
+			for (int i = 0; i < size; i++)
+				System.out.println(heap[i].thread + ", " + heap[i].getPriority()
+						+ ", " + heap[i].getEffectivePriority() + ", pass "
+						+ heap[i].pass);
+		}
+
+		@Override
+		protected void add(ThreadState ts) {
+			StrideThreadState state = (StrideThreadState) ts;
+
+			state.pass = pass + charge(state);
+			state.sequence = numWaits++;
+
+			if (size == heap.length) {
+				StrideThreadState[] newHeap = new StrideThreadState[size * 2];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+			state.heapIndex = size++;
+			heap[state.heapIndex] = state;
+			siftUp(state.heapIndex);
+
+			totalTickets += state.tickets;
+			donationChanged();
+		}
+
+		@Override
+		protected void remove(ThreadState ts) {
+			StrideThreadState state = (StrideThreadState) ts;
+			int i = state.heapIndex;
+
+			size--;
+			if (i != size) {
+				move(size, i);
+				siftDown(i);
+				siftUp(i);
+			}
+			heap[size] = null;
+
+			totalTickets -= state.tickets;
+			donationChanged();
+		}
+
+		@Override
+		protected void retickets(ThreadS ts, long oldTickets) {
+			StrideThreadState state = (StrideThreadState) ts;
+
+			long remain = state.pass - pass;
+			long oldStride = Math.max(stride1 / oldTickets, 1);
+			state.pass = pass
+					+ (long) ((double) remain * state.stride() / oldStride);
+			siftDown(state.heapIndex);
+			siftUp(state.heapIndex);
+
+			totalTickets += state.tickets - oldTickets;
+			donationChanged();
+		}
+
+		/**
+		 * Return how far past the pass of this queue a thread that starts
+		 * waiting on it is placed.
+		 */
+		private long charge(StrideThreadState state) {
+			long stride = state.stride();
+			if (this != KThread.readyQueue || !state.chosen)
+				return stride;
+
+			// a thread that yields is still running
+			if (state == running)
+				state.charge(Machine.timer().getTime());
+
+			state.chosen = false;
+			long used = Math.min(state.used, quantum);
+			return Math.max((long) ((double) stride * used / quantum), 1);
+		}
+
+		private void siftUp(int i) {
+			StrideThreadState ts = heap[i];
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!before(ts, heap[parent]))
+					break;
+				move(parent, i);
+				i = parent;
+			}
+			heap[i] = ts;
+			ts.heapIndex = i;
+		}
+
+		private void siftDown(int i) {
+			StrideThreadState ts = heap[i];
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], ts))
+					break;
+				move(child, i);
+				i = child;
+			}
+			heap[i] = ts;
+			ts.heapIndex = i;
+		}
+
+		private boolean before(StrideThreadState a, StrideThreadState b) {
+			return a.pass < b.pass || a.pass == b.pass && a.sequence < b.sequence;
+		}
+
+		private void move(int from, int to) {
+			heap[to] = heap[from];
+			heap[to].heapIndex = to;
+		}
+
+		/** The pass of the thread this queue chose last. */
+		private long pass = 0;
+		private long numWaits = 0;
+		private StrideThreadState[] heap = new StrideThreadState[4];
+		private int size = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread, including its pass and its place in
+	 * the heap of the queue it is waiting on.
+	 */
+	protected class StrideThreadState extends ThreadS {
+		public StrideThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Return the stride of the associated thread, from its effective
+		 * number of tickets.
+		 */
+		long stride() {
+			return Math.max(stride1 / tickets, 1);
+		}
+
+		/**
+		 * Charge the associated thread for running from <tt>since</tt> to
+		 * <tt>now</tt>.
+		 */
+		void charge(long now) {
+			used += now - since;
+			since = now;
+		}
+
+		private long pass;
+		/** The order in which this thread started waiting on its queue. */
+		private long sequence;
+		private int heapIndex;
+		/**
+		 * <tt>true</tt> if the ready queue chose this thread, and has not
+		 * charged it since.
+		 */
+		private boolean chosen = false;
+		/** The ticks run since the ready queue chose this thread. */
+		private long used = 0;
+		/** When the thread last started running. */
+		private long since = 0;
+	}
+
+	private int quantum;
+	/** The thread the ready queue last gave the processor to. */
+	private StrideThreadState running = null;
+}
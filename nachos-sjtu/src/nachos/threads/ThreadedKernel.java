@@ -31,11 +31,20 @@ public class ThreadedKernel extends Kernel {
 		else
 			fileSystem = null;
 
+		accounting = Config.getBoolean("ThreadedKernel.accounting", false);
+
 		// start threading
 		new KThread(null);
 
 		alarm = new Alarm();
 
+		// however Nachos exits, through terminate() or a halt system call
+		Machine.addExitHandler(new Runnable() {
+			public void run() {
+				report();
+			}
+		});
+
 		Machine.interrupt().enable();
 	}
 
@@ -65,11 +74,27 @@ public class ThreadedKernel extends Kernel {
 		Machine.halt();
 	}
 
+	/**
+	 * Print the reports of this kernel, when Nachos exits: the account of
+	 * every thread if <tt>ThreadedKernel.accounting</tt> is set, and the lock
+	 * contention profiles.
+	 */
+	protected void report() {
+		if (accounting)
+			KThread.printAccounts();
+		ContentionProfile.print();
+	}
+
 	/** Globally accessible reference to the scheduler. */
 	public static Scheduler scheduler = null;
 	/** Globally accessible reference to the alarm. */
 	public static Alarm alarm = null;
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
+	/**
+	 * <tt>true</tt> if the accounts of every thread and process should be
+	 * printed when Nachos exits.
+	 */
+	public static boolean accounting = false;
 
 }
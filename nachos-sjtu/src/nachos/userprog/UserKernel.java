@@ -117,6 +117,14 @@ public class UserKernel extends ThreadedKernel {
 
 		UserProcess process = ((UThread) KThread.currentThread()).process;
 		int cause = Machine.processor().readRegister(Processor.regCause);
+
+		if (cause == Processor.exceptionSyscall)
+			process.account.numSyscalls++;
+		else if (cause == Processor.exceptionTLBMiss)
+			process.account.numTLBMisses++;
+		else if (cause == Processor.exceptionPageFault)
+			process.account.numPageFaults++;
+
 		process.handleException(cause);
 	}
 
@@ -148,6 +156,17 @@ public class UserKernel extends ThreadedKernel {
 		super.terminate();
 	}
 
+	/**
+	 * Print the account of every process if
+	 * <tt>ThreadedKernel.accounting</tt> is set, then the reports of a
+	 * threaded kernel.
+	 */
+	protected void report() {
+		if (accounting)
+			UserProcess.printAccounts();
+		super.report();
+	}
+
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 	private static Lock freePagesLock;// = new Lock();
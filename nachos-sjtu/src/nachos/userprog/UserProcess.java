@@ -7,6 +7,7 @@ import nachos.threads.*;
 import java.io.EOFException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -32,6 +33,8 @@ public class UserProcess {
 		aliveLock.acquire();
 		aliveTot++;
 		aliveLock.release();
+		if (ThreadedKernel.accounting)
+			liveProcesses.add(this);
 		
 		descriptor.put(UserKernel.console.openForReading(), 0);
         descriptor.put(UserKernel.console.openForWriting(), 1);
@@ -161,10 +164,12 @@ public class UserProcess {
 		for (; length > 0; vpn++)
 		{
 			int count = Math.min(length, pageSize - t);
-			if (vpn > numPages)
+			if (vpn >= numPages)
 				return tot;
+			// the page may be evicted again before the fault returns
 			TranslationEntry tranEntry = getPageEntry(vpn);
-			if (!tranEntry.valid) continue;
+			while (!tranEntry.valid)
+				tranEntry = getPageEntry(vpn);
 			tranEntry.used = true;
 			int pAddr = Processor.makeAddress(tranEntry.ppn, t);
 			System.arraycopy(memory, pAddr, data, offset, count);
@@ -229,10 +234,12 @@ public class UserProcess {
 		for (; length > 0; vpn++)
 		{
 			int count = Math.min(length, pageSize - t);
-			if (vpn > numPages)
+			if (vpn >= numPages)
 				return amount;
+			// the page may be evicted again before the fault returns
 			TranslationEntry tranEntry = getPageEntry(vpn);
-			if (!tranEntry.valid) continue;
+			while (!tranEntry.valid)
+				tranEntry = getPageEntry(vpn);
 			tranEntry.used = true;
 			tranEntry.dirty = true;
 			int pAddr = Processor.makeAddress(tranEntry.ppn, t);
@@ -560,6 +567,7 @@ public class UserProcess {
 			{
 				handleClose(i);
 			}
+		retireAccount();
 		aliveLock.acquire();
 		aliveTot--;
 		if (aliveTot == 0)
@@ -590,6 +598,7 @@ public class UserProcess {
 		if (!c.execute(name, b))
 		{
 			childs.remove(new Integer(c.processID));
+			c.retireAccount();
 			aliveLock.acquire();
 			aliveTot--;
 			aliveLock.release();
@@ -857,12 +866,54 @@ public class UserProcess {
 		private HashMap<String, Integer> table = new HashMap<String, Integer>();
 	}
 	private int chhhh = 0;
+	/**
+	 * Print the account of every process that has not exited, with the
+	 * scheduling statistics of its thread added in, and the total of the
+	 * accounts of the processes that have.
+	 */
+	static void printAccounts() {
+		for (UserProcess process : liveProcesses) {
+			Stats.Account total = new Stats.Account();
+			total.add(process.account);
+			if (process.thread != null)
+				total.add(process.thread.account);
+			total.print("process " + process.processID);
+		}
+		if (finishedProcesses > 0)
+			finishedAccount.print("finished processes (" + finishedProcesses
+					+ ")");
+	}
+
+	/**
+	 * Add the account of this process, and of its thread so far, to the
+	 * total for finished processes, and stop keeping track of it.
+	 */
+	private void retireAccount() {
+		if (!liveProcesses.remove(this))
+			return;
+		finishedAccount.add(account);
+		if (thread != null)
+			finishedAccount.add(thread.account);
+		finishedProcesses++;
+	}
+
+	/** System call and paging statistics for this process. */
+	public Stats.Account account = new Stats.Account();
+
 	private static FileOpenNum fileOpenNum = new FileOpenNum();
 	private static HashSet<String> toBeRemoved = new HashSet<String>(); 
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
-	public static Lock processTotLock = new Lock(), aliveLock = new Lock();
+	public static Lock processTotLock = new Lock();
+	public static Lock aliveLock = new Lock();
 	public static int processTot = 0, aliveTot = 0;
+	/**
+	 * Every process created that has not exited, if
+	 * <tt>ThreadedKernel.accounting</tt> is set.
+	 */
+	private static LinkedHashSet<UserProcess> liveProcesses = new LinkedHashSet<UserProcess>();
+	private static Stats.Account finishedAccount = new Stats.Account();
+	private static int finishedProcesses = 0;
 	private KThread thread;
 	private int status;
 	private HashMap<Integer, UserProcess> childs = new HashMap();
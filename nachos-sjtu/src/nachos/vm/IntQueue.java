@@ -0,0 +1,50 @@
+package nachos.vm;
+
+import nachos.machine.Lib;
+
+/**
+ * A first-in first-out queue of <tt>int</tt>s, kept in a growable circular
+ * array so that adding and removing allocate nothing once it is big enough.
+ */
+public class IntQueue {
+	public IntQueue()
+	{
+		elements = new int[16];
+	}
+
+	public void add(int value)
+	{
+		if (size == elements.length)
+		{
+			int[] grown = new int[elements.length * 2];
+			for (int i = 0; i < size; ++i)
+				grown[i] = elements[(head + i) % elements.length];
+			elements = grown;
+			head = 0;
+		}
+		elements[(head + size) % elements.length] = value;
+		size++;
+	}
+
+	public int removeFirst()
+	{
+		Lib.assertTrue(size > 0);
+		int value = elements[head];
+		head = (head + 1) % elements.length;
+		size--;
+		return value;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	private int[] elements;
+	private int head = 0, size = 0;
+}
@@ -1,8 +1,12 @@
 package nachos.vm;
 
+import java.util.Arrays;
+
 import nachos.machine.Coff;
 import nachos.machine.CoffSection;
 import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
 
 public class LazyLoader {
@@ -29,23 +33,41 @@ public class LazyLoader {
 		}
 	}
 	
-	public TranslationEntry loadSection(int vpn, int ppn)
+	/**
+	 * Return <tt>true</tt> if page <i>vpn</i> belongs to a read-only section.
+	 */
+	public boolean isReadOnly(int vpn)
+	{
+		return vpn < numPages && coff.getSection(sectionBelong[vpn]).isReadOnly();
+	}
+	
+	/**
+	 * Load page <i>vpn</i> into physical page <i>ppn</i>, and point
+	 * <i>entry</i> at it, clean and unused. Pages past the executable's
+	 * sections are zero-filled.
+	 */
+	public void loadSection(int vpn, int ppn, TranslationEntry entry)
 	{
-		TranslationEntry entry;
 		if (vpn < numPages)
 		{
 			//System.out.println(numPages + " " + vpn);
 			CoffSection section = coff.getSection(sectionBelong[vpn]);
-			entry = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), false, false);
-			Lib.debug(dbgVM, "loading section vpn: " + vpn + " ppn: " + ppn + " (" + sectionBelong[vpn] + ", " + sectionOffset[vpn] + ")");
+			if (Lib.test(dbgVM))
+				Lib.debug(dbgVM, "loading section vpn: " + vpn + " ppn: " + ppn + " (" + sectionBelong[vpn] + ", " + sectionOffset[vpn] + ")");
 			section.loadPage(sectionOffset[vpn], ppn);
 		}
 		else 
 		{
-			entry = new TranslationEntry(vpn, ppn, true, false, false, false);
-			Lib.debug(dbgVM, "loading page vpn: " + vpn + " ppn: " + ppn);
+			if (Lib.test(dbgVM))
+				Lib.debug(dbgVM, "loading page vpn: " + vpn + " ppn: " + ppn);
+			// so that a clean page can be dropped and loaded again
+			int paddr = Processor.makeAddress(ppn, 0);
+			Arrays.fill(Machine.processor().getMemory(), paddr, paddr + Processor.pageSize, (byte) 0);
 		}
-		return entry;
+		entry.ppn = ppn;
+		entry.valid = true;
+		entry.dirty = false;
+		entry.used = false;
 	}
 	Coff coff;
 	private int numPages, numSections;
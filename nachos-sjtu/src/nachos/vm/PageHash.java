@@ -0,0 +1,130 @@
+package nachos.vm;
+
+import nachos.machine.Lib;
+
+/**
+ * A map from (pid, vpn) pairs to non-negative <tt>int</tt>s. The pair is
+ * packed into one <tt>long</tt> key and looked up by open addressing with
+ * linear probing, so lookups, insertions and removals allocate nothing
+ * unless the table has to grow.
+ */
+public class PageHash {
+	public PageHash()
+	{
+		allocate(64);
+	}
+
+	/**
+	 * Return the value of (<i>pid</i>, <i>vpn</i>), or -1 if it has none.
+	 */
+	public int get(int pid, int vpn)
+	{
+		int i = find(key(pid, vpn));
+		return i < 0 ? -1 : values[i];
+	}
+
+	public void put(int pid, int vpn, int value)
+	{
+		Lib.assertTrue(value >= 0);
+		long key = key(pid, vpn);
+		int i = find(key);
+		if (i >= 0)
+		{
+			values[i] = value;
+			return;
+		}
+		if (2 * (size + 1) > keys.length)
+			grow();
+		i = slot(key);
+		while (keys[i] != noKey)
+			i = (i + 1) & mask;
+		keys[i] = key;
+		values[i] = value;
+		size++;
+	}
+
+	/**
+	 * Remove (<i>pid</i>, <i>vpn</i>) and return its value, or -1 if it had
+	 * none.
+	 */
+	public int remove(int pid, int vpn)
+	{
+		int i = find(key(pid, vpn));
+		if (i < 0)
+			return -1;
+		int value = values[i];
+		size--;
+
+		// move later keys of the same probe run back into the hole
+		int hole = i;
+		for (int j = (i + 1) & mask; keys[j] != noKey; j = (j + 1) & mask)
+		{
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - hole) & mask))
+			{
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		keys[hole] = noKey;
+		return value;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	private int find(long key)
+	{
+		for (int i = slot(key); keys[i] != noKey; i = (i + 1) & mask)
+			if (keys[i] == key)
+				return i;
+		return -1;
+	}
+
+	private int slot(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & mask;
+	}
+
+	private static long key(int pid, int vpn)
+	{
+		return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+	}
+
+	private void grow()
+	{
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(keys.length * 2);
+		for (int i = 0; i < oldKeys.length; ++i)
+		{
+			if (oldKeys[i] == noKey)
+				continue;
+			int j = slot(oldKeys[i]);
+			while (keys[j] != noKey)
+				j = (j + 1) & mask;
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+		}
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		for (int i = 0; i < capacity; ++i)
+			keys[i] = noKey;
+	}
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size = 0;
+
+	private static final long noKey = -1;
+}
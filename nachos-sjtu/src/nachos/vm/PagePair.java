@@ -2,12 +2,31 @@ package nachos.vm;
 
 import nachos.machine.TranslationEntry;
 
+/**
+ * What a physical page holds: the page table entry of process <i>pid</i>
+ * that maps it, or nothing if <i>process</i> is <tt>null</tt>.
+ */
 public class PagePair {
-	PagePair(int pid, TranslationEntry entry)
+	void set(int pid, VMProcess process, TranslationEntry entry)
 	{
 		this.pid = pid;
+		this.process = process;
 		this.entry = entry;
 	}
-	public int pid;
-	public TranslationEntry entry;
+	
+	void clear()
+	{
+		set(-1, null, null);
+	}
+	
+	boolean isFree()
+	{
+		return process == null;
+	}
+	
+	public int pid = -1;
+	public VMProcess process = null;
+	public TranslationEntry entry = null;
+	/** The virtual time of the owning process when the page was last seen used. */
+	public long lastUse;
 }
@@ -1,5 +1,7 @@
 package nachos.vm;
 
+import java.util.BitSet;
+
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.OpenFile;
@@ -7,9 +9,6 @@ import nachos.machine.Processor;
 import nachos.threads.ThreadedKernel;
 import nachos.userprog.UserKernel;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-
 import nachos.machine.TranslationEntry;
 
 public class SwapFile {
@@ -17,10 +16,9 @@ public class SwapFile {
 	public SwapFile()
 	{
 		swapFile = ThreadedKernel.fileSystem.open(swapName, true);
-		mapping = new HashMap<IPair, TranslationEntry>();
-		freePages = new LinkedList<Integer>();
-		usedPages = new HashMap<IPair, Integer>();
-		pageSize = Machine.processor().pageSize;
+		usedSlots = new BitSet();
+		usedPages = new PageHash();
+		pageSize = Processor.pageSize;
 		//init?
 	}
 	
@@ -30,51 +28,191 @@ public class SwapFile {
 		UserKernel.fileSystem.remove(swapName);
 	}
 	
-	private int allocate()
+	/**
+	 * Allocate <i>n</i> consecutive pages of the swap file, the first run
+	 * of free pages that is long enough.
+	 * 
+	 * @return the first page allocated.
+	 */
+	private int allocate(int n)
 	{
-		if (freePages.isEmpty())
-			freePages.add(pageCount++);
-		return freePages.removeFirst();
+		int start = usedSlots.nextClearBit(0);
+		while (true)
+		{
+			int end = usedSlots.nextSetBit(start);
+			if (end < 0 || end - start >= n)
+				break;
+			start = usedSlots.nextClearBit(end);
+		}
+		usedSlots.set(start, start + n);
+		return start;
 	}
 	
-	public boolean remove(IPair p)
+	public boolean remove(int pid, int vpn)
 	{
-		if (!usedPages.containsKey(p)) return false;
-		freePages.add(usedPages.remove(p));
-		mapping.remove(p);
+		int page = usedPages.remove(pid, vpn);
+		if (page < 0) return false;
+		usedSlots.clear(page);
 		return true;
 	}
 	
+	/**
+	 * Return the page of the swap file holding page <i>vpn</i> of process
+	 * <i>pid</i>, or -1 if it has none.
+	 */
+	public int getSlot(int pid, int vpn)
+	{
+		return usedPages.get(pid, vpn);
+	}
+	
+	/**
+	 * Save page <i>vpn</i> of process <i>pid</i>, held in the physical page
+	 * <i>entry</i> maps, before the physical page is reused. Only dirty pages
+	 * are written: a clean page was either read from the swap file, which
+	 * still holds a valid copy, or loaded from the executable or zero-filled,
+	 * and can be loaded again.
+	 * 
+	 * @return the number of bytes written.
+	 */
 	public int swapToFile(int pid, int vpn, TranslationEntry entry)
 	{
 		if (entry == null || entry.readOnly)
 			return 0;
-		Lib.debug(dbgVM, "swapping (" + pid + ", " + vpn + ") to file");
-		IPair p = new IPair(pid, vpn);
-		int page = usedPages.containsKey(p) ? usedPages.get(p) : allocate();
-		mapping.put(p, entry);
-		usedPages.put(p, new Integer(page));
+		if (!entry.dirty)
+		{
+			writesAvoided++;
+			return 0;
+		}
+		writes++;
+		writeOps++;
+		if (Lib.test(dbgVM))
+			Lib.debug(dbgVM, "swapping (" + pid + ", " + vpn + ") to file");
+		int page = usedPages.get(pid, vpn);
+		if (page < 0)
+		{
+			page = allocate(1);
+			usedPages.put(pid, vpn, page);
+		}
+		entry.dirty = false;
 		return swapFile.write(page * pageSize, Machine.processor().getMemory(), Processor.makeAddress(entry.ppn, 0), pageSize);
 	}
 	
-	public TranslationEntry swapToMemory(int pid, int vpn, int ppn)
+	/**
+	 * Read page <i>vpn</i> of process <i>pid</i> into physical page
+	 * <i>ppn</i>, and point <i>entry</i> at it, clean and unused.
+	 * 
+	 * @return <tt>false</tt> if the page is not in the swap file.
+	 */
+	public boolean swapToMemory(int pid, int vpn, int ppn, TranslationEntry entry)
 	{
-		TranslationEntry entry = mapping.get(new IPair(pid, vpn));
-		if (entry == null) return null;
-		Lib.debug(dbgVM, "swapping (" + pid + ", " + vpn + ") to memory");
-		int page = usedPages.get(new IPair(pid, vpn));
+		int page = usedPages.get(pid, vpn);
+		if (page < 0) return false;
+		if (Lib.test(dbgVM))
+			Lib.debug(dbgVM, "swapping (" + pid + ", " + vpn + ") to memory");
+		reads++;
+		readOps++;
 		swapFile.read(page * pageSize, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), pageSize);
 		entry.ppn = ppn;
 		entry.valid = true;
 		entry.dirty = false;
 		entry.used = false;
-		return entry;
+		return true;
+	}
+	
+	/**
+	 * Write the <i>n</i> dirty pages of process <i>pid</i> that
+	 * <tt>pages[first]</tt> to <tt>pages[first+n-1]</tt> map to consecutive
+	 * pages of the swap file, with one write, moving them if they are not
+	 * consecutive already. The pages are clean afterwards.
+	 */
+	public void swapOut(int pid, TranslationEntry[] pages, int first, int n)
+	{
+		if (Lib.test(dbgVM))
+			Lib.debug(dbgVM, "swapping (" + pid + ", " + first + ") and "
+					+ (n - 1) + " more to file");
+		int page = usedPages.get(pid, first);
+		boolean consecutive = page >= 0;
+		for (int i = 1; i < n && consecutive; ++i)
+			consecutive = usedPages.get(pid, first + i) == page + i;
+		if (!consecutive)
+		{
+			for (int i = 0; i < n; ++i)
+				remove(pid, first + i);
+			page = allocate(n);
+			for (int i = 0; i < n; ++i)
+				usedPages.put(pid, first + i, page + i);
+		}
+
+		byte[] memory = Machine.processor().getMemory();
+		byte[] buffer = getBuffer(n);
+		for (int i = 0; i < n; ++i)
+		{
+			TranslationEntry entry = pages[first + i];
+			System.arraycopy(memory, Processor.makeAddress(entry.ppn, 0), buffer, i * pageSize, pageSize);
+			entry.dirty = false;
+		}
+		swapFile.write(page * pageSize, buffer, 0, n * pageSize);
+		writes += n;
+		writeOps++;
+	}
+	
+	/**
+	 * Read the <i>n</i> pages of process <i>pid</i> that
+	 * <tt>pages[first]</tt> to <tt>pages[first+n-1]</tt> map, which must be
+	 * in consecutive pages of the swap file, into physical pages
+	 * <tt>ppns[0]</tt> to <tt>ppns[n-1]</tt> with one read, and point the
+	 * entries at them, clean and unused.
+	 * 
+	 * @return <tt>false</tt> if the first page is not in the swap file.
+	 */
+	public boolean swapIn(int pid, TranslationEntry[] pages, int first, int[] ppns, int n)
+	{
+		if (n == 1)
+			return swapToMemory(pid, first, ppns[0], pages[first]);
+		int page = usedPages.get(pid, first);
+		if (page < 0) return false;
+		if (Lib.test(dbgVM))
+			Lib.debug(dbgVM, "swapping (" + pid + ", " + first + ") and "
+					+ (n - 1) + " more to memory");
+		byte[] memory = Machine.processor().getMemory();
+		byte[] buffer = getBuffer(n);
+		swapFile.read(page * pageSize, buffer, 0, n * pageSize);
+		for (int i = 0; i < n; ++i)
+		{
+			Lib.assertTrue(usedPages.get(pid, first + i) == page + i);
+			System.arraycopy(buffer, i * pageSize, memory, Processor.makeAddress(ppns[i], 0), pageSize);
+			TranslationEntry entry = pages[first + i];
+			entry.ppn = ppns[i];
+			entry.valid = true;
+			entry.dirty = false;
+			entry.used = false;
+		}
+		reads += n;
+		readOps++;
+		return true;
 	}
 	
-	private HashMap<IPair, TranslationEntry> mapping;
-	private LinkedList<Integer> freePages;
-	private HashMap<IPair, Integer> usedPages;
-	private int pageCount = 0;
+	private byte[] getBuffer(int n)
+	{
+		if (buffer.length < n * pageSize)
+			buffer = new byte[n * pageSize];
+		return buffer;
+	}
+	
+	/** The number of pages read, written, and not written because they were clean. */
+	public int reads = 0, writes = 0, writesAvoided = 0;
+	/** The number of reads and writes of the swap file. */
+	public int readOps = 0, writeOps = 0;
+	
+	/** The pages of the swap file in use. */
+	private BitSet usedSlots;
+	/** The page of the swap file holding each swapped out (pid, vpn). */
+	private PageHash usedPages;
+	/**
+	 * Holds pages moved together. Shared, so callers must hold the VM lock
+	 * across <tt>swapOut()</tt> and <tt>swapIn()</tt>.
+	 */
+	private byte[] buffer = new byte[0];
 	
 	private OpenFile swapFile;
 	private int pageSize;
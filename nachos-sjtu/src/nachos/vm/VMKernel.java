@@ -52,5 +52,28 @@ public class VMKernel extends UserKernel {
 		VMProcess.swapFile.close();
 	}
 
+	/**
+	 * Print the paging statistics if <tt>ThreadedKernel.accounting</tt> is
+	 * set, then the reports of a user kernel.
+	 */
+	protected void report() {
+		if (accounting)
+			System.out.println("VM: page faults " + VMProcess.pageFaultCount
+					+ " (" + VMProcess.faultTicks
+					/ Math.max(VMProcess.pageFaultCount, 1)
+					+ " ticks each), TLB misses " + VMProcess.tlbMissCount + ", evictions "
+					+ VMProcess.evictionCount + ", pages trimmed "
+					+ VMProcess.trimCount + ", suspensions "
+					+ VMProcess.suspensionCount + ", TLB entries restored "
+					+ VMProcess.tlbRestoreCount + ", swap reads "
+					+ VMProcess.swapFile.reads + " in "
+					+ VMProcess.swapFile.readOps + " (read ahead "
+					+ VMProcess.readAheadCount + "), swap writes "
+					+ VMProcess.swapFile.writes + " in "
+					+ VMProcess.swapFile.writeOps + " (avoided "
+					+ VMProcess.swapFile.writesAvoided + ")");
+		super.report();
+	}
+
 	private static final char dbgVM = 'v';
 }
@@ -1,10 +1,11 @@
 package nachos.vm;
 
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Random;
 import nachos.threads.Lock;
+import nachos.threads.ThreadedKernel;
 
+import nachos.machine.Config;
 import nachos.machine.Kernel;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
@@ -25,168 +26,640 @@ public class VMProcess extends UserProcess {
 		{
 			lock = new Lock();
 			pageInfo = new PagePair[Machine.processor().getNumPhysPages()];
-			freePages = new LinkedList<Integer>();
+			freePages = new IntQueue();
 			phyPageTot = Machine.processor().getNumPhysPages();
 			for (int i = 0; i < phyPageTot; ++i)
-				freePages.add(new Integer(i));
+			{
+				pageInfo[i] = new PagePair();
+				freePages.add(i);
+			}
 			swapFile = new SwapFile();
 			random = new Random();
 			tlbSize = Machine.processor().getTLBSize();
-			pageTable = new HashMap<IPair, TranslationEntry>();
-			
+			usingASIDs = Machine.processor().hasASIDs();
+			restoreTLB = Config.getBoolean("VMProcess.restoreTLB", true);
+
+			String policy = Config.getString("VMProcess.replacement", "clock");
+			if (policy.equals("random"))
+				replacement = replaceRandom;
+			else if (policy.equals("clock"))
+				replacement = replaceClock;
+			else if (policy.equals("enhancedClock"))
+				replacement = replaceEnhancedClock;
+			else if (policy.equals("workingSet"))
+				replacement = replaceWorkingSet;
+			else
+				Lib.assertNotReached("unknown VMProcess.replacement: " + policy);
+
+			workingSetWindow = Config.getInteger("VMProcess.workingSetWindow", 4000);
+			faultIntervalLow = Config.getInteger("VMProcess.faultIntervalLow", 500);
+			faultIntervalHigh = Config.getInteger("VMProcess.faultIntervalHigh", 8000);
+			suspendTicks = Config.getInteger("VMProcess.suspendTicks", 5000);
+
+			swapCluster = Config.getInteger("VMProcess.swapCluster", 4);
+			Lib.assertTrue(swapCluster > 0, "invalid VMProcess.swapCluster");
+			clusterPages = new int[swapCluster];
+
 			/*maxCount = 10 * phyPageTot;
 			useCount = new int[phyPageTot];
 			useRecord = new LinkedList<IPair>();
 			enterTime = new int[phyPageTot];*/
 		}
+		savedTLB = new int[tlbSize];
 	}
 	
-	private boolean removePage(int ppn)
+	/**
+	 * Evict the page in physical page <i>ppn</i>, writing it to swap if it
+	 * is dirty. The physical page is only put on the free list once the
+	 * write is done. Called with the VM lock held.
+	 */
+	private static boolean removePage(int ppn)
 	{
-		Lib.debug(dbgVM, "Removing Page ppn:" + ppn);
-		if (pageInfo[ppn].pid == processID)
-			invalidate(pageInfo[ppn].entry.vpn);
-		freePages.add(new Integer(ppn));
+		if (Lib.test(dbgVM))
+			Lib.debug(dbgVM, "Removing Page ppn:" + ppn);
+		evictionCount++;
 		PagePair pp = pageInfo[ppn];
-		pageTable.remove(new IPair(pp.pid, pp.entry.vpn));
-		swapFile.swapToFile(pp.pid, pp.entry.vpn, pp.entry);
+		invalidate(pp.pid, pp.entry.vpn);
+		pp.process.residentPages--;
+		pp.entry.valid = false;
+		if (isClean(pp.entry))
+			swapFile.swapToFile(pp.pid, pp.entry.vpn, pp.entry);
+		else
+			pp.process.swapOutCluster(pp.entry.vpn);
+		pp.clear();
+		freePages.add(ppn);
 		return true;
 	}
 	
 	private boolean removePages()
 	{
-		for (int i = 0; i < numPages; ++i)
+		lock.acquire();
+		for (int vpn = 0; vpn < numPages; ++vpn)
 		{
-			IPair p = new IPair(processID, i);
-			if (pageTable.containsKey(p))
+			TranslationEntry entry = pageTable[vpn];
+			if (entry.valid)
 			{
-				TranslationEntry entry = pageTable.get(p);
-				pageTable.remove(p);
+				entry.valid = false;
 				freePages.add(entry.ppn);
+				pageInfo[entry.ppn].clear();
 			}
-			swapFile.remove(p);
+			swapFile.remove(processID, vpn);
+		}
+		residentPages = 0;
+		lock.release();
+		return true;
+	}
+
+	/**
+	 * Write dirty page <i>vpn</i> to swap together with the dirty resident
+	 * pages next to it, up to <tt>VMProcess.swapCluster</tt> pages in all,
+	 * into consecutive pages of the swap file with one write, so that they
+	 * can be read back together. The other pages stay resident, and are
+	 * clean afterwards.
+	 */
+	private void swapOutCluster(int vpn)
+	{
+		int first = vpn, last = vpn;
+		while (last - first + 1 < swapCluster && isDirtyResident(last + 1))
+			last++;
+		while (last - first + 1 < swapCluster && isDirtyResident(first - 1))
+			first--;
+		int n = last - first + 1;
+		if (n == 1)
+			swapFile.swapToFile(processID, vpn, pageTable[vpn]);
+		else
+			swapFile.swapOut(processID, pageTable, first, n);
+	}
+
+	/**
+	 * Return <tt>true</tt> if page <i>vpn</i> is resident, writable and
+	 * dirty, after moving the dirty bit of its TLB entry into the page table.
+	 */
+	private boolean isDirtyResident(int vpn)
+	{
+		if (vpn < 0 || vpn >= numPages)
+			return false;
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid || entry.readOnly)
+			return false;
+		cleanTLBEntry(processID, vpn);
+		return entry.dirty;
+	}
+
+	/**
+	 * Read page <i>vpn</i> from swap into physical page <i>ppn</i>, and read
+	 * ahead, with the same read, the pages after it that are in the
+	 * following pages of the swap file, up to <tt>VMProcess.swapCluster</tt>
+	 * pages in all, as long as there are free physical pages for them.
+	 * Pages read ahead are unused, so they are the first to be evicted if
+	 * they are not referenced.
+	 * 
+	 * @return <tt>false</tt> if <i>vpn</i> is not in the swap file.
+	 */
+	private boolean swapIn(int vpn, int ppn)
+	{
+		int slot = swapFile.getSlot(processID, vpn);
+		if (slot < 0)
+			return false;
+		int n = 1;
+		clusterPages[0] = ppn;
+		while (n < swapCluster && vpn + n < numPages && !freePages.isEmpty()
+				&& !pageTable[vpn + n].valid
+				&& swapFile.getSlot(processID, vpn + n) == slot + n)
+			clusterPages[n++] = freePages.removeFirst();
+		swapFile.swapIn(processID, pageTable, vpn, clusterPages, n);
+
+		long now = getVirtualTime();
+		for (int i = 1; i < n; ++i)
+		{
+			Machine.processor().invalidatePage(clusterPages[i]);
+			PagePair pp = pageInfo[clusterPages[i]];
+			pp.set(processID, this, pageTable[vpn + i]);
+			pp.lastUse = now;
+			residentPages++;
 		}
+		readAheadCount += n - 1;
 		return true;
 	}
 
+	/**
+	 * Take a free physical page, evicting a page first if there is none.
+	 */
 	private int allocatePage()
 	{
 		if (freePages.isEmpty())
 		{
-			int ppn = getPageVictim();
+			int ppn = getPageVictim(this);
 			removePage(ppn);
 		}
 		return freePages.removeFirst();
-
 	}
 	
-	public void writeBackPageTable(TranslationEntry entry)
+	/**
+	 * Copy the used and dirty bits of a TLB entry of process <i>pid</i> into
+	 * the page table entry it was loaded from, found through
+	 * <tt>pageInfo</tt>.
+	 */
+	public static void writeBackPageTable(int pid, TranslationEntry entry)
 	{
-		pageTable.put(new IPair(processID, entry.vpn), entry);
+		PagePair pp = pageInfo[entry.ppn];
+		if (pp.pid != pid || pp.entry.vpn != entry.vpn)
+			return;
+		pp.entry.used |= entry.used;
+		pp.entry.dirty |= entry.dirty;
 	}
 	
+	/**
+	 * Return the page table entry for <i>vpn</i>, faulting the page in if
+	 * it is not resident. The entry is invalid if the page was evicted again
+	 * before this returns.
+	 * 
+	 * @return the page table entry, or <tt>null</tt> if <i>vpn</i> is not
+	 *         part of this process's address space.
+	 */
 	@Override
 	public TranslationEntry getPageEntry(int vpn)
 	{
-		TranslationEntry t = pageTable.get(new IPair(processID, vpn));
-		if (t != null) return t;
+		if (vpn < 0 || vpn >= numPages)
+			return null;
+		TranslationEntry t = pageTable[vpn];
+		if (t.valid) return t;
+		account.numPageFaults++;
 		handlePageFault(vpn);
-		t = pageTable.get(new IPair(processID, vpn));
-		//int ppn = t.ppn;
-		//useCount[ppn]++;
-		//useRecord.addLast(new IPair(ppn, (int)Machine.timer().getTime()));
 		return t;
 	}
 	
-	private int getPageVictim()
+	/**
+	 * Choose the physical page to evict, by the policy selected with
+	 * <tt>VMProcess.replacement</tt>: <tt>random</tt>, <tt>clock</tt> (second
+	 * chance) or <tt>enhancedClock</tt>, which also prefers pages that need
+	 * not be written to swap. At least one physical page must be in use.
+	 * 
+	 * @param requester
+	 *            the process that needs the page.
+	 */
+	private static int getPageVictim(VMProcess requester)
 	{
-		return random.nextInt(phyPageTot);
-		/*while (useRecord.size() > 0 && useRecord.pollFirst().second > Machine.timer().getTime() - maxCount)
+		if (replacement == replaceRandom)
 		{
-			IPair p = useRecord.removeFirst();
-			int ppn = p.first, time = p.second;
-			if (time >= enterTime[ppn])
-				useCount[ppn]--;
+			int ppn;
+			do
+				ppn = random.nextInt(phyPageTot);
+			while (pageInfo[ppn].isFree());
+			return ppn;
 		}
-		int j = 0;
-		for (int i = 1; i < phyPageTot; i++)
-			if (useCount[i] < useCount[j])
-				j = i;
-		return j;*/
+
+		harvestUsedBits();
+		if (replacement == replaceEnhancedClock)
+			return getEnhancedClockVictim();
+		if (replacement == replaceWorkingSet)
+			return getWorkingSetVictim(requester);
+		return getClockVictim();
+	}
+
+	/**
+	 * Move the used bits of the TLB into the page table, clearing them in the
+	 * TLB so that later references set them again.
+	 */
+	private static void harvestUsedBits()
+	{
+		for (int i = 0; i < tlbSize; ++i)
+		{
+			TranslationEntry entry = Machine.processor().readTLBEntry(i);
+			if (entry.valid && entry.used)
+			{
+				writeBackPageTable(getTLBOwner(i), entry);
+				entry.used = false;
+				rewriteTLBEntry(i, entry);
+			}
+		}
+	}
+
+	/**
+	 * Advance the clock hand past the next physical page in use, and return
+	 * that page.
+	 */
+	private static int advanceClockHand()
+	{
+		while (true)
+		{
+			int ppn = clockHand;
+			clockHand = (clockHand + 1) % phyPageTot;
+			if (!pageInfo[ppn].isFree())
+				return ppn;
+		}
+	}
+
+	private static int getClockVictim()
+	{
+		while (true)
+		{
+			int ppn = advanceClockHand();
+			TranslationEntry entry = pageInfo[ppn].entry;
+			if (!entry.used)
+				return ppn;
+			entry.used = false;
+		}
+	}
+
+	/**
+	 * Sweep once for a page that is neither used nor dirty, then once for a
+	 * page that is not used, clearing used bits on the way, until one is
+	 * found.
+	 */
+	private static int getEnhancedClockVictim()
+	{
+		while (true)
+		{
+			for (int i = 0; i < phyPageTot; ++i)
+			{
+				int ppn = advanceClockHand();
+				TranslationEntry entry = pageInfo[ppn].entry;
+				if (!entry.used && isClean(entry))
+					return ppn;
+			}
+			for (int i = 0; i < phyPageTot; ++i)
+			{
+				int ppn = advanceClockHand();
+				TranslationEntry entry = pageInfo[ppn].entry;
+				if (!entry.used)
+					return ppn;
+				entry.used = false;
+			}
+		}
+	}
+
+	/**
+	 * WSClock: sweep once around the frames, refreshing the reference time of
+	 * used pages, for a page that has fallen out of its owner's working set,
+	 * preferring a clean one. If every page is in a working set, a thrashing
+	 * process gives up its own least recently used page, and any other
+	 * process takes the least recently used page overall.
+	 */
+	private static int getWorkingSetVictim(VMProcess requester)
+	{
+		int oldDirty = -1;
+		for (int i = 0; i < phyPageTot; ++i)
+		{
+			int ppn = advanceClockHand();
+			PagePair pp = pageInfo[ppn];
+			long now = pp.process.getVirtualTime();
+			if (pp.entry.used)
+			{
+				pp.entry.used = false;
+				pp.lastUse = now;
+			}
+			else if (now - pp.lastUse > workingSetWindow)
+			{
+				if (isClean(pp.entry))
+					return ppn;
+				if (oldDirty < 0)
+					oldDirty = ppn;
+			}
+		}
+		if (oldDirty >= 0)
+			return oldDirty;
+
+		VMProcess owner = requester != null && requester.thrashing
+				&& requester.residentPages > minResidentPages ? requester : null;
+		int victim = -1;
+		long victimAge = -1;
+		for (int ppn = 0; ppn < phyPageTot; ++ppn)
+		{
+			PagePair pp = pageInfo[ppn];
+			if (pp.isFree() || (owner != null && pp.process != owner))
+				continue;
+			long age = pp.process.getVirtualTime() - pp.lastUse;
+			if (age > victimAge)
+			{
+				victim = ppn;
+				victimAge = age;
+			}
+		}
+		return victim;
+	}
+
+	/**
+	 * Return the number of physical pages that are in the working set of
+	 * their owner: used since the last sweep, or used within the last
+	 * <tt>VMProcess.workingSetWindow</tt> ticks of the owner's running time.
+	 */
+	private static int countWorkingSetPages()
+	{
+		int count = 0;
+		for (int ppn = 0; ppn < phyPageTot; ++ppn)
+		{
+			PagePair pp = pageInfo[ppn];
+			if (!pp.isFree() && (pp.entry.used
+					|| pp.process.getVirtualTime() - pp.lastUse <= workingSetWindow))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Page-fault-frequency control, called with the VM lock held before a
+	 * page is faulted in. A process that faults less often than every
+	 * <tt>VMProcess.faultIntervalHigh</tt> ticks of its own running time
+	 * holds more than it needs, and gives back the pages that have left its
+	 * working set. A process that faults more often than every
+	 * <tt>VMProcess.faultIntervalLow</tt> ticks is thrashing; if every page
+	 * of memory is in some working set and other processes hold pages, it is
+	 * swapped out and suspended so that the others can run, and is not
+	 * suspended again until it has run for a working set window.
+	 */
+	private void controlLoad()
+	{
+		long now = getVirtualTime();
+		long interval = now - lastFaultTime;
+		lastFaultTime = now;
+		thrashing = interval < faultIntervalLow;
+		if (now - windowStart > workingSetWindow)
+		{
+			windowStart = now;
+			faultsInWindow = 0;
+		}
+		faultsInWindow++;
+
+		harvestUsedBits();
+		if (interval > faultIntervalHigh)
+			trimWorkingSet();
+		else if (thrashing && now - resumedTime > workingSetWindow
+				&& freePages.isEmpty()
+				&& residentPages < phyPageTot
+				&& countWorkingSetPages() == phyPageTot)
+			suspend();
+	}
+
+	/**
+	 * Free the pages of this process that have left its working set.
+	 */
+	private void trimWorkingSet()
+	{
+		long now = getVirtualTime();
+		for (int ppn = 0; ppn < phyPageTot; ++ppn)
+		{
+			PagePair pp = pageInfo[ppn];
+			if (pp.process == this && !pp.entry.used
+					&& now - pp.lastUse > workingSetWindow)
+			{
+				removePage(ppn);
+				trimCount++;
+			}
+		}
+	}
+
+	/**
+	 * Swap out every page of this process and wait, checking every
+	 * <tt>VMProcess.suspendTicks</tt>, until its working set fits beside
+	 * the working sets of the processes still running. Its working set is
+	 * estimated as the pages it held plus the faults it took in the current
+	 * window. Suspended processes are resumed in the order they were
+	 * suspended, but none waits for more than <tt>maxSuspendChecks</tt>
+	 * checks, so a process waiting on a suspended one cannot hold memory
+	 * forever. Releases the VM lock while waiting.
+	 */
+	private void suspend()
+	{
+		Lib.debug(dbgVM, "Suspending pid: " + processID);
+		suspensionCount++;
+		int needed = Math.min(residentPages + faultsInWindow, phyPageTot);
+		for (int ppn = 0; ppn < phyPageTot; ++ppn)
+			if (pageInfo[ppn].process == this)
+				removePage(ppn);
+
+		suspended.add(this);
+		for (int checks = 0; checks < maxSuspendChecks; ++checks)
+		{
+			lock.release();
+			ThreadedKernel.alarm.waitUntil(suspendTicks);
+			lock.acquire();
+			if (suspended.getFirst() == this
+					&& countWorkingSetPages() + needed <= phyPageTot)
+				break;
+		}
+		suspended.remove(this);
+
+		resumedTime = lastFaultTime = windowStart = getVirtualTime();
+		faultsInWindow = 0;
+		thrashing = false;
+	}
+
+	/**
+	 * Return the number of ticks this process has been running for, which
+	 * is the clock working sets are measured by.
+	 */
+	long getVirtualTime()
+	{
+		if (running)
+			return virtualTime + Machine.timer().getTime() - runningSince;
+		return virtualTime;
+	}
+
+	private static boolean isClean(TranslationEntry entry)
+	{
+		return entry.readOnly || !entry.dirty;
 	}
 	
+	/**
+	 * Make page <i>vpn</i> resident. The time this takes, including waiting
+	 * for the VM lock but not time spent suspended by load control, is added
+	 * to <tt>faultTicks</tt>.
+	 */
 	void handlePageFault(int vpn)
 	{
+		long start = Machine.timer().getTime();
 		lock.acquire();
+		TranslationEntry entry = pageTable[vpn];
+		if (entry.valid)
+		{
+			lock.release();
+			return;
+		}
 		pageFaultCount++;
+		if (replacement == replaceWorkingSet)
+		{
+			long waited = Machine.timer().getTime() - start;
+			controlLoad();
+			start = Machine.timer().getTime() - waited;
+		}
 		int ppn = allocatePage();
-		Lib.debug(dbgVM, "Handling page fault pid: " + processID + " vpn: " + vpn);
-		TranslationEntry entry = swapFile.swapToMemory(processID, vpn, ppn);
-		if (entry == null)
-			entry = loader.loadSection(vpn, ppn);
-		pageTable.put(new IPair(processID, vpn), entry);
-		pageInfo[ppn] = new PagePair(processID, entry);
+		if (Lib.test(dbgVM))
+			Lib.debug(dbgVM, "Handling page fault pid: " + processID + " vpn: " + vpn);
+		Machine.processor().invalidatePage(ppn);
+		if (!swapIn(vpn, ppn))
+			loader.loadSection(vpn, ppn, entry);
+		// the page is about to be referenced; do not let it be the next victim
+		entry.used = true;
+		pageInfo[ppn].set(processID, this, entry);
+		pageInfo[ppn].lastUse = getVirtualTime();
+		residentPages++;
 		/*enterTime[ppn] = (int)Machine.timer().getTime();
 		useCount[ppn] = 0;*/
+		faultTicks += Machine.timer().getTime() - start;
 		lock.release();
 		return;
 	}
 
-	public void invalidate(int vpn)
+	/**
+	 * Return the pid of the process TLB entry <i>i</i> belongs to. Without
+	 * ASIDs, the TLB only holds entries of the running process.
+	 */
+	private static int getTLBOwner(int i)
+	{
+		return usingASIDs ? Machine.processor().readTLBEntryASID(i) : tlbOwner;
+	}
+
+	/**
+	 * Invalidate the TLB entry for page <i>vpn</i> of process <i>pid</i>, if
+	 * there is one, after writing back its used and dirty bits.
+	 */
+	public static void invalidate(int pid, int vpn)
 	{
 		for (int i = 0; i < tlbSize; ++i)
 		{
 			TranslationEntry entry = Machine.processor().readTLBEntry(i);
-			if (entry.valid && entry.vpn == vpn)
+			if (entry.valid && entry.vpn == vpn && getTLBOwner(i) == pid)
 			{
 				writeBackTLBEntry(i);
 				entry.valid = false;
-				Machine.processor().writeTLBEntry(i, entry);
+				rewriteTLBEntry(i, entry);
+			}
+		}
+	}
+	
+	/**
+	 * Move the dirty bit of the TLB entry for page <i>vpn</i> of process
+	 * <i>pid</i>, if there is one, into the page table, clearing it in the
+	 * TLB so that writes made after the page is written to swap dirty it
+	 * again.
+	 */
+	private static void cleanTLBEntry(int pid, int vpn)
+	{
+		for (int i = 0; i < tlbSize; ++i)
+		{
+			TranslationEntry entry = Machine.processor().readTLBEntry(i);
+			if (entry.valid && entry.dirty && entry.vpn == vpn && getTLBOwner(i) == pid)
+			{
+				writeBackPageTable(pid, entry);
+				entry.dirty = false;
+				rewriteTLBEntry(i, entry);
 			}
 		}
 	}
 	
+	/**
+	 * Invalidate every TLB entry of this process, after writing back their
+	 * used and dirty bits.
+	 */
 	public void invalidateAll()
 	{
 		for (int i = 0; i < tlbSize; ++i)
 		{
 			TranslationEntry entry = Machine.processor().readTLBEntry(i);
-			if (entry.valid)
+			if (entry.valid && getTLBOwner(i) == processID)
 			{
 				writeBackTLBEntry(i);
 				entry.valid = false;
-				Machine.processor().writeTLBEntry(i, entry);
+				rewriteTLBEntry(i, entry);
 			}
 		}
 	}
 	
 	
-	public void writeBackTLBEntry(int i)
+	public static void writeBackTLBEntry(int i)
 	{
 		TranslationEntry entry = Machine.processor().readTLBEntry(i);
 		if (!entry.valid) 
 			return;
-		writeBackPageTable(entry);
+		writeBackPageTable(getTLBOwner(i), entry);
 	}
 	
 
 	public boolean handleTLBMiss(int vpn)
 	{
-		Lib.debug(dbgVM, "Handling TLB Miss pid: " + processID + ", vpn:" + vpn);
+		if (Lib.test(dbgVM))
+			Lib.debug(dbgVM, "Handling TLB Miss pid: " + processID + ", vpn:" + vpn);
 		TranslationEntry entry = getPageEntry(vpn);
 		tlbMissCount++;
 		if (entry == null) 
 		{
 			return false;
 		}
+		// evicted again before it could be used; the access will miss again
+		if (!entry.valid)
+			return true;
 		int i = getTLBVictim(); 
 		writeBackTLBEntry(i);
-		Machine.processor().writeTLBEntry(i, entry);
+		writeTLBEntry(i, entry);
 		return true;
 	}
+
+	/**
+	 * Update TLB entry <i>i</i>, keeping the ASID it is tagged with.
+	 */
+	private static void rewriteTLBEntry(int i, TranslationEntry entry)
+	{
+		if (usingASIDs)
+			Machine.processor().writeTLBEntry(i, entry, Machine.processor().readTLBEntryASID(i));
+		else
+			Machine.processor().writeTLBEntry(i, entry);
+	}
+
+	/**
+	 * Load a page table entry into TLB entry <i>i</i>, with its used bit
+	 * clear so that it records references made since it was loaded.
+	 */
+	private static void writeTLBEntry(int i, TranslationEntry entry)
+	{
+		boolean used = entry.used;
+		entry.used = false;
+		Machine.processor().writeTLBEntry(i, entry);
+		entry.used = used;
+	}
 	
 
-	private int getTLBVictim()
+	private static int getTLBVictim()
 	{
 		for (int i = 0; i < tlbSize; ++i)
 		{
@@ -200,8 +673,9 @@ public class VMProcess extends UserProcess {
 			TranslationEntry entry = Machine.processor().readTLBEntry(tlbVicHead);
 			if (!entry.used)
 				return tlbVicHead;
+			writeBackPageTable(getTLBOwner(tlbVicHead), entry);
 			entry.used = false;
-			Machine.processor().writeTLBEntry(tlbVicHead, entry);
+			rewriteTLBEntry(tlbVicHead, entry);
 			tlbVicHead = (tlbVicHead + 1) % tlbSize;
 		}
 	}
@@ -209,10 +683,32 @@ public class VMProcess extends UserProcess {
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
+	 * 
+	 * <p>
+	 * With an ASID-tagged TLB, the entries of this process stay in the TLB.
+	 * Otherwise they are written back and invalidated, and unless
+	 * <tt>VMProcess.restoreTLB</tt> is <tt>false</tt>, the pages they mapped
+	 * are remembered so <tt>restoreState()</tt> can load them again.
 	 */
 	@Override
 	public void saveState() {
-		invalidateAll();
+		if (!usingASIDs)
+		{
+			savedTLBSize = 0;
+			for (int i = 0; i < tlbSize; ++i)
+			{
+				TranslationEntry entry = Machine.processor().readTLBEntry(i);
+				if (entry.valid && restoreTLB)
+					savedTLB[savedTLBSize++] = entry.vpn;
+			}
+			invalidateAll();
+			tlbOwner = -1;
+		}
+		if (running)
+		{
+			virtualTime += Machine.timer().getTime() - runningSince;
+			running = false;
+		}
 	}
 
 	/**
@@ -221,6 +717,26 @@ public class VMProcess extends UserProcess {
 	 */
 	public void restoreState() {
 		//System.out.println("restoreState " + processID);
+		runningSince = Machine.timer().getTime();
+		running = true;
+
+		if (usingASIDs)
+		{
+			Machine.processor().setASID(processID);
+			return;
+		}
+
+		tlbOwner = processID;
+		// pages evicted while this process was switched out are skipped
+		int i = 0;
+		for (int j = 0; j < savedTLBSize; ++j)
+		{
+			TranslationEntry entry = pageTable[savedTLB[j]];
+			if (entry.valid)
+				writeTLBEntry(i++, entry);
+		}
+		tlbRestoreCount += i;
+		savedTLBSize = 0;
 	}
 	
 	/**
@@ -232,6 +748,9 @@ public class VMProcess extends UserProcess {
 	@Override
 	protected boolean loadSections() {
 		loader = new LazyLoader(coff);
+		pageTable = new TranslationEntry[numPages];
+		for (int vpn = 0; vpn < numPages; ++vpn)
+			pageTable[vpn] = new TranslationEntry(vpn, 0, false, loader.isReadOnly(vpn), false, false);
 		return true;
 	}
 
@@ -242,6 +761,7 @@ public class VMProcess extends UserProcess {
 	protected void unloadSections() {
 		Lib.debug(dbgVM, "unloading process " + processID);
 		invalidateAll();
+		savedTLBSize = 0;
 		removePages();
 		coff.close();
 	}
@@ -257,7 +777,8 @@ public class VMProcess extends UserProcess {
 	public void handleException(int cause) {
 		switch (cause) {
 		case Processor.exceptionTLBMiss:
-			handleTLBMiss(Processor.pageFromAddress(Machine.processor().readRegister(Processor.regBadVAddr)));
+			if (!handleTLBMiss(Processor.pageFromAddress(Machine.processor().readRegister(Processor.regBadVAddr))))
+				super.handleException(cause);
 			break;
 		case Processor.exceptionPageFault:
 			handlePageFault(Processor.pageFromAddress(Machine.processor().readRegister(Processor.regBadVAddr)));
@@ -271,8 +792,18 @@ public class VMProcess extends UserProcess {
 	private static final char dbgProcess = 'a';
 	private static final char dbgVM = 'v';
 	private LazyLoader loader;
+	/** The number of physical pages holding pages of this process. */
+	private int residentPages = 0;
+	private long virtualTime = 0, runningSince = 0;
+	private boolean running = false;
+	private long lastFaultTime = 0, resumedTime = 0, windowStart = 0;
+	private int faultsInWindow = 0;
+	private boolean thrashing = false;
+	/** The vpns mapped by the TLB when this process was last switched out. */
+	private int[] savedTLB;
+	private int savedTLBSize = 0;
 	static private Random random;
-	static private HashMap<IPair, TranslationEntry> pageTable;
+	/** What each physical page holds; an inverted page table. */
 	static private PagePair pageInfo[];
 	
 /*	static private int useCount[];
@@ -280,10 +811,35 @@ public class VMProcess extends UserProcess {
 	static private int enterTime[];
 	static private int maxCount;*/
 	
+	static private int replacement;
+	static private int clockHand = 0;
+	private static final int replaceRandom = 0, replaceClock = 1,
+			replaceEnhancedClock = 2, replaceWorkingSet = 3;
+	static private int workingSetWindow, faultIntervalLow, faultIntervalHigh;
+	static private int suspendTicks;
+	/** The most pages written to or read from swap together. */
+	static private int swapCluster;
+	/**
+	 * The physical pages of a read-ahead. Like the staging buffer of
+	 * <tt>swapFile</tt>, only used with the VM lock held.
+	 */
+	static private int[] clusterPages;
+	static private LinkedList<VMProcess> suspended = new LinkedList<VMProcess>();
+	private static final int maxSuspendChecks = 64;
+	/** A thrashing process keeps at least this many pages when replacing its own. */
+	private static final int minResidentPages = 4;
+	
 	static private int phyPageTot;
-	static private LinkedList<Integer> freePages;
+	static private IntQueue freePages;
 	static private int tlbSize;
+	static private boolean usingASIDs, restoreTLB;
+	/** Without ASIDs, the pid of the process whose entries the TLB holds. */
+	static private int tlbOwner = -1;
 	static SwapFile swapFile;
 	static Lock lock;
 	static public int tlbMissCount = 0, pageFaultCount = 0, tlbVicHead = 0; 
+	static public int evictionCount = 0, trimCount = 0, suspensionCount = 0;
+	static public int tlbRestoreCount = 0, readAheadCount = 0;
+	/** The total time spent serving page faults. */
+	static public long faultTicks = 0;
 }